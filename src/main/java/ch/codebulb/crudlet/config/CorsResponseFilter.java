@@ -22,10 +22,10 @@ public class CorsResponseFilter implements ContainerResponseFilter {
         if (Options.CORS) {
             responseCtx.getHeaders().add("Access-Control-Allow-Origin", "*");
             responseCtx.getHeaders().add("Access-Control-Allow-Credentials", "true");
-            responseCtx.getHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD");
-            responseCtx.getHeaders().addAll("Access-Control-Allow-Headers", "origin, content-type, accept, authorization");
+            responseCtx.getHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS, HEAD");
+            responseCtx.getHeaders().addAll("Access-Control-Allow-Headers", "origin, content-type, accept, authorization, if-match, if-none-match");
         }
         // Explicitly name all headers used in any Resources
-        responseCtx.getHeaders().add("Access-Control-Expose-Headers", "Location");
+        responseCtx.getHeaders().add("Access-Control-Expose-Headers", "Location, X-Total-Count, X-Next-Cursor, Link, ETag");
     }
 }
\ No newline at end of file
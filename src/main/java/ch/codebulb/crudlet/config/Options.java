@@ -24,4 +24,63 @@ public class Options {
     
     /** Global hook to disable the GET COUNT service endpoint. <code>false</code> means disabled; defaults to <code>true</code>. */
     public static boolean ALLOW_COUNT = true;
+    
+    /** Global hook to limit the number of entities returned by the GET service endpoint, whether or not
+     * the client requests a page by the <code>_limit</code> query parameter. A value &lt;= <code>0</code> means unlimited;
+     * defaults to <code>0</code>. */
+    public static int MAX_PAGE_SIZE = 0;
+    
+    /** Global hook to disable the <code>X-Total-Count</code> and <code>Link</code> headers returned with a page of entities.
+     * <code>false</code> means disabled; defaults to <code>true</code>. */
+    public static boolean RETURN_PAGING_HEADERS = true;
+    
+    /** Global hook to set the number of entities fetched at once by the streaming GET service endpoints; defaults to <code>500</code>. */
+    public static int STREAM_CHUNK_SIZE = 500;
+    
+    /** Global hook to set the number of entities saved at once (with one flush) by the import service endpoint. Every batch is committed
+     * in its own transaction, so a failing batch does not roll back the batches imported before or after it; defaults to <code>500</code>. */
+    public static int IMPORT_BATCH_SIZE = 500;
+    
+    /** Global hook to restrict sorting by the <code>_sort</code> query parameter to orders the first attribute of which is indexed,
+     * thus preventing the database from sorting all matching entities for a page. <code>false</code> means restricted; defaults to <code>true</code>. */
+    public static boolean ALLOW_UNINDEXED_SORT = true;
+    
+    /** Global hook to disable the <code>ETag</code> header and conditional requests (<code>If-None-Match</code>) of the GET service endpoints.
+     * <code>false</code> means disabled; defaults to <code>true</code>. */
+    public static boolean RETURN_ETAGS = true;
+    
+    /** Global hook to set the maximum number of entities of a GET response for which the <code>ETag</code> is computed from the response content
+     * (if the entity has no version attribute), which is buffered in memory for that; larger responses are returned without an <code>ETag</code>.
+     * A value &lt; <code>0</code> means no limit, <code>0</code> disables such <code>ETag</code>s; defaults to <code>100</code>. */
+    public static int MAX_CONTENT_ETAG_ENTITIES = 100;
+    
+    /** Global hook to set the number of threads of the executor shared by the read service endpoints of all <code>AsyncCrudResource</code>s;
+     * defaults to <code>16</code>. Takes effect when the executor is created, i.e. on its first use. */
+    public static int ASYNC_READ_THREADS = 16;
+    
+    /** Global hook to set the number of threads of the executor shared by the write service endpoints of all <code>AsyncCrudResource</code>s;
+     * defaults to <code>8</code>. Takes effect when the executor is created, i.e. on its first use. */
+    public static int ASYNC_WRITE_THREADS = 8;
+    
+    /** Global hook to set the number of requests which may wait for a thread of each executor of the <code>AsyncCrudResource</code>s;
+     * any further request is rejected with HTTP 503 SERVICE UNAVAILABLE. A value &lt;= <code>0</code> means no waiting requests;
+     * defaults to <code>100</code>. Takes effect when the executor is created, i.e. on its first use. */
+    public static int ASYNC_QUEUE_SIZE = 100;
+    
+    /** Global hook to set the time in milliseconds after which a request to an <code>AsyncCrudResource</code> which is still waiting for a thread
+     * is dropped and answered with HTTP 503 SERVICE UNAVAILABLE; an operation which has started is always answered with its result. A value &lt;= <code>0</code> means no timeout; defaults to <code>30000</code>. */
+    public static long ASYNC_TIMEOUT_MILLIS = 30000;
+    
+    /** Global hook to execute the operations of the <code>AsyncCrudResource</code>s on virtual threads if the Java runtime supports them
+     * (Java 21 or later), of which at most <code>Options#ASYNC_READ_THREADS</code> / <code>Options#ASYNC_WRITE_THREADS</code> execute
+     * at the same time, while waiting operations do not occupy OS threads. <code>true</code> means enabled; defaults to <code>false</code>.
+     * Takes effect when the executors are created, i.e. on their first use. */
+    public static boolean ASYNC_VIRTUAL_THREADS = false;
+    
+    /** Global hook to set the JNDI name of the container-managed <code>ManagedExecutorService</code> on which the operations of the
+     * <code>AsyncCrudResource</code>s are executed (unless <code>Options#ASYNC_VIRTUAL_THREADS</code> is set), so that they run on container
+     * threads; at most <code>Options#ASYNC_READ_THREADS</code> / <code>Options#ASYNC_WRITE_THREADS</code> of them execute at the same time.
+     * If it cannot be looked up or is <code>null</code>, the executors create their own threads instead;
+     * defaults to <code>java:comp/DefaultManagedExecutorService</code>. Takes effect when the executors are created, i.e. on their first use. */
+    public static String ASYNC_MANAGED_EXECUTOR = "java:comp/DefaultManagedExecutorService";
 }
@@ -15,4 +15,52 @@ public class IllegalRequestExceptions {
             super("Request body entity's id field is expected to be empty or to match id path parameter.");
         }
     }
+    
+    public static class IllegalQueryParameterException extends Exception {
+        public IllegalQueryParameterException(String name, String value) {
+            super("Query parameter " + name + " is expected to be a non-negative integer, but was: " + value);
+        }
+    }
+    
+    public static class ConflictingQueryParametersException extends Exception {
+        public ConflictingQueryParametersException(String name, String otherName) {
+            super("Query parameters " + name + " and " + otherName + " must not be combined.");
+        }
+    }
+    
+    public static class IllegalFilterException extends Exception {
+        public IllegalFilterException(String name, String reason) {
+            super("Query parameter " + name + " is not a valid filter: " + reason);
+        }
+    }
+    
+    public static class IllegalSortException extends Exception {
+        public IllegalSortException(String name, String reason) {
+            super("Query parameter " + name + " is not a valid sort order: " + reason);
+        }
+    }
+    
+    public static class IllegalFieldsException extends Exception {
+        public IllegalFieldsException(String name, String reason) {
+            super("Query parameter " + name + " is not a valid list of fields: " + reason);
+        }
+    }
+    
+    public static class IllegalPatchException extends Exception {
+        public IllegalPatchException(String name, String reason) {
+            super("Request body attribute " + name + " is not a valid patch: " + reason);
+        }
+    }
+    
+    public static class IllegalBatchOperationException extends Exception {
+        public IllegalBatchOperationException(String message) {
+            super(message);
+        }
+    }
+    
+    public static class BatchOperationNotExecutedException extends Exception {
+        public BatchOperationNotExecutedException() {
+            super("Batch operation not executed because another operation of the batch is illegal.");
+        }
+    }
 }
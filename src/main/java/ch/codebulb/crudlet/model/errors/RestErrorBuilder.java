@@ -24,6 +24,13 @@ public class RestErrorBuilder {
         }
     }
     
+    /**
+     * Returns the error information as a (nested) Map, e.g. to include it in a composite response.
+     */
+    public Map getResponseBody() {
+        return responseBody;
+    }
+    
     public Response createResponse() {
         return Response.status(Response.Status.BAD_REQUEST).entity(JsonHelper.build(responseBody)).build();
     }
@@ -0,0 +1,83 @@
+package ch.codebulb.crudlet.service;
+
+import ch.codebulb.crudlet.model.CrudIdentifiable;
+import javax.persistence.PersistenceException;
+
+/**
+ * A single create / update / delete operation of a batch executed by {@link CrudService#executeBatch(java.util.List)}.
+ */
+public class BatchOperation<T extends CrudIdentifiable> {
+    /**
+     * The kind of a batch operation.
+     */
+    public static enum Type {
+        CREATE, UPDATE, DELETE
+    }
+
+    private final Type type;
+    private final Long id;
+    private final T entity;
+
+    private BatchOperation(Type type, Long id, T entity) {
+        this.type = type;
+        this.id = id;
+        this.entity = entity;
+    }
+
+    /**
+     * Creates an operation which inserts the entity provided.
+     */
+    public static <T extends CrudIdentifiable> BatchOperation<T> create(T entity) {
+        return new BatchOperation<>(Type.CREATE, null, entity);
+    }
+
+    /**
+     * Creates an operation which updates the entity provided.
+     */
+    public static <T extends CrudIdentifiable> BatchOperation<T> update(T entity) {
+        return new BatchOperation<>(Type.UPDATE, entity.getId(), entity);
+    }
+
+    /**
+     * Creates an operation which deletes the entity with the id provided.
+     */
+    public static <T extends CrudIdentifiable> BatchOperation<T> delete(Long id) {
+        return new BatchOperation<>(Type.DELETE, id, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public T getEntity() {
+        return entity;
+    }
+
+    /**
+     * Thrown by {@link CrudService#executeBatch(java.util.List)} if an operation of the batch fails.
+     */
+    public static class FailedException extends PersistenceException {
+        private final int index;
+
+        public FailedException(int index, PersistenceException cause) {
+            super(cause.getMessage(), cause);
+            this.index = index;
+        }
+
+        /**
+         * Returns the index of the operation which failed, or <code>-1</code> if the batch failed when it was flushed.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public PersistenceException getCause() {
+            return (PersistenceException) super.getCause();
+        }
+    }
+}
@@ -3,17 +3,50 @@ package ch.codebulb.crudlet.service;
 import ch.codebulb.crudlet.model.CrudEntity;
 import ch.codebulb.crudlet.model.CrudIdentifiable;
 import java.io.Serializable;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.Transactional;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validation;
+import javax.validation.Validator;
 import javax.validation.constraints.NotNull;
 
 /**
@@ -25,10 +58,12 @@ import javax.validation.constraints.NotNull;
  * <p>
  * This service realizes the basic CRUD operations:</p>
  * <ul>
- * <li><b>Create (C):</b> <code>create()</code> + <code>save()</code></li>
- * <li><b>Read (R)</b>: <code>findById(Long id)</code> / <code>findAll()</code> / <code>findBy()</code> / <code>countAll()</code> / <code>countBy()</code></li>
- * <li><b>Update (U)</b>: <code>save()</code></li>
- * <li><b>Delete (D)</b>: <code>delete()</code> / <code>deleteAll()</code> / <code>deleteBy()</code></li>
+ * <li><b>Create (C):</b> <code>create()</code> + <code>save()</code> / <code>saveAll()</code></li>
+ * <li><b>Read (R)</b>: <code>findById(Long id)</code> / <code>findAll()</code> / <code>findBy()</code> (optionally paged) / <code>countAll()</code> / <code>countBy()</code>,
+ * which join the caller's transaction, if any, but do not start one (<code>&#064;Transactional(SUPPORTS)</code>);
+ * see {@link #isReadOnlyQueryEnabled()}; they may be routed to a read replica, see {@link #setReadEm(EntityManager)}</li>
+ * <li><b>Update (U)</b>: <code>save()</code> / <code>saveIfVersion()</code> / <code>patch()</code> / <code>saveAll()</code></li>
+ * <li><b>Delete (D)</b>: <code>delete()</code> / <code>deleteByIds()</code> / <code>deleteAll()</code> / <code>deleteBy()</code></li>
  * </ul>
  * <p>
  * In order to create a CRUD service for an entity type, make sure the entity
@@ -72,7 +107,7 @@ public class CustomerService extends CrudService&lt;Customer&gt; {
  * Conveniently, Crudlet also comes with an alternative implementation of
  * <code>CrudService</code> named {@link CrudServiceMocked}. As its name
  * suggests, this implementation's "persistence" functionality is based on a
- * simple {@link HashMap} storing the saved entities. Whilst of no use in a
+ * simple thread-safe in-memory map storing the saved entities. Whilst of no use in a
  * real-world production environment, this class might come in handy if you want
  * to try something out without having a proper database / persistence
  * configuration set up. You may then use a {@link CrudServiceMocked}
@@ -83,6 +118,39 @@ public class CustomerService extends CrudService&lt;Customer&gt; {
 @Transactional(Transactional.TxType.REQUIRED)
 public abstract class CrudService<T extends CrudIdentifiable> implements Serializable {
     protected EntityManager em;
+    protected EntityManager readEm;
+    
+    private static final String NAMED_QUERY_PREFIX = "crudlet:";
+    private static final String FILTER_PARAMETER_PREFIX = "filter";
+    private static final String AFTER_PARAMETER = "after";
+    private static final String TRANSACTION_SYNCHRONIZATION_REGISTRY = "java:comp/TransactionSynchronizationRegistry";
+    private static final List<SortOrder> NO_ORDERS = Collections.emptyList();
+    private static final List<String> NO_FIELDS = Collections.emptyList();
+    // the names of the named queries registered by getNamedQuery() per EntityManagerFactory
+    private static final Map<EntityManagerFactory, Set<String>> NAMED_QUERIES = new WeakHashMap<>();
+    // System.nanoTime() of the last write operation per EntityManagerFactory, shared by all service instances
+    private static final Map<EntityManagerFactory, Long> LAST_WRITE_NANOS = new WeakHashMap<>();
+    private transient int pendingOperations = 0;
+    private transient TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+    
+    /**
+     * Defines when the write operations of a service flush the persistence context, i.e. when the 
+     * SQL statements are actually sent to the database.<p/>
+     * 
+     * Deferring the flush saves a database round-trip per operation if multiple write operations
+     * are executed within the same transaction and allows the JPA provider to batch the JDBC statements;
+     * however, any database error (and any Bean Validation error on update) is then only raised at the time of the flush,
+     * at the latest when the transaction commits. Regardless of the strategy, the persistence context is flushed 
+     * immediately if an id generated by the database is required for the result.
+     */
+    public static enum FlushStrategy {
+        /** Flush after every write operation. */
+        IMMEDIATE,
+        /** Flush after every {@link CrudService#getFlushInterval()} write operations. */
+        EVERY_N,
+        /** Flush when the transaction commits. */
+        ON_COMMIT
+    }
     
     /**
      * Invokes the constructor for the entity type.
@@ -94,6 +162,13 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
      */
     public abstract Class<T> getModelClass();
     
+    /**
+     * Returns the metadata of the {@link #getModelClass()}, as resolved once from the JPA metamodel.
+     */
+    public EntityMetadata getMetadata() {
+        return EntityMetadata.of(getModelClass(), em != null ? em.getMetamodel() : null);
+    }
+    
     /**
      * Sets the entity manager. Override this method to dependency-inject an {@link EntityManager}
      * with the associated <code>@PersistenceContext</code>
@@ -102,12 +177,58 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
         this.em = em;
     }
     
+    /**
+     * Sets the entity manager for read operations, e.g. of a persistence unit connected to a read replica of the database.
+     * Override this method to dependency-inject an {@link EntityManager} with the associated
+     * <code>@PersistenceContext(unitName = ...)</code>; if it is not set, all operations use the {@link #setEm(EntityManager)} entity manager.
+     * See {@link #getReadEm()}.
+     */
+    protected void setReadEm(EntityManager readEm) {
+        this.readEm = readEm;
+    }
+    
+    /**
+     * Returns the entity manager used by the read operations <code>findById()</code>, <code>findAll()</code> / <code>findBy()</code>
+     * and <code>countAll()</code> / <code>countBy()</code>: the {@link #setReadEm(EntityManager)} entity manager, if any.<p/>
+     * 
+     * However, the primary entity manager is returned while it is joined to a transaction, so that a read sees the transaction's changes,
+     * and within {@link #getReadYourWritesMillis()} after a write operation of any service on the same primary persistence unit
+     * (i.e. <code>EntityManagerFactory</code>) in this JVM, as the read replica may lag behind the primary database.
+     * This does not hold across several instances of the application (e.g. behind a load balancer without session affinity),
+     * nor if the replication lag exceeds {@link #getReadYourWritesMillis()}.
+     */
+    protected EntityManager getReadEm() {
+        if (readEm == null || readEm == em || em.isJoinedToTransaction()) {
+            return em;
+        }
+        Long lastWrite;
+        synchronized (LAST_WRITE_NANOS) {
+            lastWrite = LAST_WRITE_NANOS.get(em.getEntityManagerFactory());
+        }
+        if (lastWrite != null && System.nanoTime() - lastWrite < TimeUnit.MILLISECONDS.toNanos(getReadYourWritesMillis())) {
+            return em;
+        }
+        return readEm;
+    }
+    
+    /**
+     * Returns the time in milliseconds after a write operation during which read operations use the primary entity manager
+     * rather than the {@link #setReadEm(EntityManager)} entity manager; this should exceed the replication lag of the read replica.
+     * By default, this returns <code>1000</code>.
+     * 
+     * Extension point to add custom behavior.
+     */
+    protected long getReadYourWritesMillis() {
+        return 1000;
+    }
+    
     /**
      * Returns a List of all entities.<p/>
      * 
      * <b>Performance note:</b> This implementation is not optimized as it is built from a dynamic query.
      * For production environments, implement this method explicitly by using a named query.
      */
+    @Transactional(Transactional.TxType.SUPPORTS)
     public List<T> findAll() {
         return findBy(null);
     }
@@ -115,17 +236,228 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
     /**
      * Returns a List of all entities which match the predicates provided.<p/>
      * 
-     * <b>Performance note:</b> This implementation is not optimized as it is built from a dynamic query.
-     * For production environments, implement this method explicitly by using named queries.
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
      */
+    @Transactional(Transactional.TxType.SUPPORTS)
     public List<T> findBy(Map<String, String> predicates) {
-        CriteriaQuery<T> query = em.getCriteriaBuilder().createQuery(getModelClass());
-        Root<T> from = query.from(getModelClass());
-        query = query.select(from);
-        if (predicates != null) {
-            query.where(createPredicates(em.getCriteriaBuilder(), from, predicates));
+        QueryCacheKey cacheKey = getQueryCacheKey(QueryKind.FIND, predicates, NO_ORDERS, NO_FIELDS, 0, -1);
+        List<T> ret = getCachedResult(cacheKey);
+        if (ret != null) {
+            return ret;
+        }
+        List<QueryFilter> filters = parseFilters(predicates);
+        ret = setReadOnly(createQuery(getReadEm(), QueryKind.FIND, filters, NO_ORDERS, NO_FIELDS, getModelClass())).getResultList();
+        return cacheList(cacheKey, ret);
+    }
+    
+    /**
+     * Returns a List of at most <code>max</code> entities which match the predicates provided,
+     * starting at the <code>first</code> result, ordered by {@link CrudIdentifiable#getId()}.
+     * If <code>predicates</code> is <code>null</code>, all entities are taken into account.
+     * A negative <code>max</code> value means no limit.<p/>
+     * 
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public List<T> findBy(Map<String, String> predicates, int first, int max) {
+        return findBy(predicates, null, first, max);
+    }
+    
+    /**
+     * Returns a List of at most <code>max</code> entities which match the predicates provided,
+     * starting at the <code>first</code> result, ordered by the orders provided and then by {@link CrudIdentifiable#getId()}.
+     * If <code>predicates</code> / <code>orders</code> is <code>null</code>, all entities are taken into account / ordered by id only.
+     * A negative <code>max</code> value means no limit.<p/>
+     * 
+     * The entities are sorted by the database; if the first order's attribute is indexed, a page can be read from the index
+     * rather than by sorting all the entities which match.<p/>
+     * 
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape and orders (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public List<T> findBy(Map<String, String> predicates, List<SortOrder> orders, int first, int max) {
+        QueryCacheKey cacheKey = getQueryCacheKey(QueryKind.FIND_ORDERED, predicates, orders, NO_FIELDS, first, max);
+        List<T> ret = getCachedResult(cacheKey);
+        if (ret != null) {
+            return ret;
+        }
+        List<QueryFilter> filters = parseFilters(predicates);
+        // a stable order is required for consistent pages
+        TypedQuery<T> typedQuery = setReadOnly(createQuery(getReadEm(), QueryKind.FIND_ORDERED, filters, orders != null ? orders : NO_ORDERS, NO_FIELDS, getModelClass()))
+                .setFirstResult(first);
+        if (max >= 0) {
+            typedQuery.setMaxResults(max);
+        }
+        return cacheList(cacheKey, typedQuery.getResultList());
+    }
+    
+    /**
+     * Returns the values of the fields provided (and of the id) by field name of at most <code>max</code> entities
+     * which match the predicates provided, starting at the <code>first</code> result, ordered as by {@link #findBy(Map, List, int, int)}.
+     * A negative <code>max</code> value means no limit.<p/>
+     * 
+     * In contrast to loading the entities, only the columns of the fields provided are selected
+     * and no entity is added to the persistence context. The fields must be basic attributes, i.e. no associations.<p/>
+     * 
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape, orders and fields (see {@link #isQueryPlanCacheEnabled()}).
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public List<Map<String, Object>> findFieldsBy(Map<String, String> predicates, List<SortOrder> orders, List<String> fields, int first, int max) {
+        QueryCacheKey cacheKey = getQueryCacheKey(QueryKind.FIND_FIELDS, predicates, orders, fields, first, max);
+        List<Map<String, Object>> cached = getCachedResult(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        List<QueryFilter> filters = parseFilters(predicates);
+        List<String> selected = new ArrayList<>(fields.size() + 1);
+        selected.add("id");
+        for (String field : fields) {
+            if (!selected.contains(field)) {
+                selected.add(field);
+            }
+        }
+        // the columns are selected in a normalized order, so that the same fields in any order share the same query
+        List<String> normalizedSelected = new ArrayList<>(new TreeSet<>(selected));
+        TypedQuery<Tuple> query = setReadOnly(createQuery(getReadEm(), QueryKind.FIND_FIELDS, filters, orders != null ? orders : NO_ORDERS, normalizedSelected, Tuple.class))
+                .setFirstResult(first);
+        if (max >= 0) {
+            query.setMaxResults(max);
+        }
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (Tuple tuple : query.getResultList()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String field : selected) {
+                values.put(field, tuple.get(field));
+            }
+            ret.add(Collections.unmodifiableMap(values));
+        }
+        return cacheList(cacheKey, ret);
+    }
+    
+    /**
+     * Returns a List of at most <code>max</code> entities which match the predicates provided
+     * and the {@link CrudIdentifiable#getId()} of which is greater than <code>afterId</code>, ordered by id.
+     * If <code>predicates</code> is <code>null</code>, all entities are taken into account.
+     * A negative <code>max</code> value means no limit.<p/>
+     * 
+     * In contrast to {@link #findBy(Map, int, int)}, this "keyset" query does not need to skip
+     * previous results; its cost is thus independent from the position of the page.
+     * Use the id of the last entity returned as the <code>afterId</code> of the next page.<p/>
+     * 
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public List<T> findAfter(Map<String, String> predicates, Long afterId, int max) {
+        List<QueryFilter> filters = parseFilters(predicates);
+        EntityManager entityManager = getReadEm();
+        TypedQuery<T> typedQuery;
+        if (afterId != null) {
+            typedQuery = createQuery(entityManager, QueryKind.FIND_AFTER, filters, NO_ORDERS, NO_FIELDS, getModelClass());
+            typedQuery.setParameter(AFTER_PARAMETER, afterId);
+        }
+        else {
+            typedQuery = createQuery(entityManager, QueryKind.FIND_ORDERED, filters, NO_ORDERS, NO_FIELDS, getModelClass());
+        }
+        if (max >= 0) {
+            typedQuery.setMaxResults(max);
+            setFetchSize(typedQuery, max);
+        }
+        return setReadOnly(typedQuery).getResultList();
+    }
+    
+    /**
+     * Hints the JPA provider to fetch <code>fetchSize</code> rows per JDBC round-trip for the query provided.
+     * Hints of providers other than the actual provider are ignored.
+     */
+    protected void setFetchSize(Query query, int fetchSize) {
+        if (fetchSize > 0) {
+            query.setHint("org.hibernate.fetchSize", fetchSize);
+            query.setHint("eclipselink.jdbc.fetch-size", fetchSize);
+        }
+    }
+    
+    /**
+     * Returns whether reads which are not joined to a transaction hint the JPA provider that the entities they load are read-only
+     * (see {@link #getReadOnlyHints()}), so that it does not keep a snapshot of every entity for dirty checking,
+     * and do not flush the persistence context before a query. This saves memory and CPU per entity loaded, and lets
+     * the provider route the reads to a read-only connection if it supports to do so.
+     * Reads joined to a transaction are never hinted read-only as the caller may modify the entities loaded.<p/>
+     * 
+     * By default, this returns <code>true</code>.
+     * 
+     * Extension point to add custom behavior.
+     */
+    protected boolean isReadOnlyQueryEnabled() {
+        return true;
+    }
+    
+    /**
+     * Returns the query hints which mark a read as read-only, or an empty Map if the current read is not read-only
+     * (see {@link #isReadOnlyQueryEnabled()}). Hints of providers other than the actual provider are ignored.
+     */
+    protected Map<String, Object> getReadOnlyHints() {
+        if (!isReadOnlyQueryEnabled() || em.isJoinedToTransaction()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("org.hibernate.readOnly", true);
+        ret.put("eclipselink.read-only", "True");
+        return ret;
+    }
+    
+    /**
+     * Applies the {@link #getReadOnlyHints()} to the query provided and returns it.
+     */
+    private <Q extends Query> Q setReadOnly(Q query) {
+        Map<String, Object> hints = getReadOnlyHints();
+        if (!hints.isEmpty()) {
+            for (Map.Entry<String, Object> hint : hints.entrySet()) {
+                query.setHint(hint.getKey(), hint.getValue());
+            }
+            query.setFlushMode(FlushModeType.COMMIT);
+        }
+        return query;
+    }
+    
+    /**
+     * Returns an Iterator over all entities which match the predicates provided
+     * and the {@link CrudIdentifiable#getId()} of which is greater than <code>afterId</code>, ordered by id.
+     * If <code>predicates</code> / <code>afterId</code> is <code>null</code>, all entities are taken into account.<p/>
+     * 
+     * The entities are lazily fetched in chunks of <code>chunkSize</code> (&gt; 0) entities by {@link #findAfter(Map, Long, int)}
+     * which also serves as the JDBC fetch size hint;
+     * every chunk is released by {@link #release(List)} before the next one is fetched.
+     * Thus, memory consumption stays constant regardless of the total number of entities.
+     * Do not modify the entities returned.
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public Iterator<T> iterateBy(Map<String, String> predicates, Long afterId, int chunkSize) {
+        return new ChunkIterator(predicates, afterId, chunkSize);
+    }
+    
+    /**
+     * Removes the chunk of entities provided, as fetched by {@link #iterateBy(Map, Long, int)}, from the persistence context.
+     * Clears the entire persistence context if it is not joined to a transaction, thus not holding any pending changes.
+     */
+    protected void release(List<T> chunk) {
+        EntityManager entityManager = getReadEm();
+        if (!entityManager.isJoinedToTransaction()) {
+            entityManager.clear();
+        }
+        else {
+            for (T entity : chunk) {
+                entityManager.detach(entity);
+            }
         }
-        return (List<T>) em.createQuery(query).getResultList();
     }
     
     /**
@@ -134,6 +466,7 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
      * <b>Performance note:</b> This implementation is not optimized as it is built from a dynamic query.
      * For production environments, implement this method explicitly by using a named query.
      */
+    @Transactional(Transactional.TxType.SUPPORTS)
     public long countAll() {
         return countBy(null);
     }
@@ -141,24 +474,128 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
     /**
      * Counts the number of entities which match the predicates provided.<p/>
      * 
-     * <b>Performance note:</b> This implementation is not optimized as it is built from a dynamic query.
-     * For production environments, implement this method explicitly by using named queries.
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
      */
+    @Transactional(Transactional.TxType.SUPPORTS)
     public long countBy(Map<String, String> predicates) {
-        CriteriaQuery<Long> query = em.getCriteriaBuilder().createQuery(Long.class);
-        Root<T> from = query.from(getModelClass());
-        query = query.select(em.getCriteriaBuilder().count(from));
-        if (predicates != null) {
-            query.where(createPredicates(em.getCriteriaBuilder(), from, predicates));
+        QueryCacheKey cacheKey = getQueryCacheKey(QueryKind.COUNT, predicates, NO_ORDERS, NO_FIELDS, 0, -1);
+        Long ret = getCachedResult(cacheKey);
+        if (ret != null) {
+            return ret;
         }
-        return em.createQuery(query).getSingleResult();
+        List<QueryFilter> filters = parseFilters(predicates);
+        ret = setReadOnly(createQuery(getReadEm(), QueryKind.COUNT, filters, NO_ORDERS, NO_FIELDS, Long.class)).getSingleResult();
+        return cacheResult(cacheKey, ret);
     }
       
     /**
-     * Returns the entity with the {@link CrudEntity#getId()} provided.
+     * Returns the entity with the {@link CrudEntity#getId()} provided.<p/>
+     * 
+     * If an entity cache is provided by {@link #getEntityCache()}, the entity is looked up in the cache first.
+     * An entity loaded within a transaction is not cached, as it may reflect the transaction's uncommitted changes.
      */
+    @Transactional(Transactional.TxType.SUPPORTS)
     public T findById(Long id) {
-        return em.find(getModelClass(), id);
+        ServiceCache<Long, T> cache = getEntityCache();
+        if (cache == null || id == null) {
+            return find(id);
+        }
+        T ret = cache.get(id);
+        if (ret == null) {
+            // read before loading, so that the entity is not cached if it has been written in the meantime
+            long generation = cache.getGeneration();
+            ret = find(id);
+            if (ret != null && !em.isJoinedToTransaction()) {
+                cache.put(id, ret, generation);
+            }
+        }
+        return ret;
+    }
+    
+    private T find(Long id) {
+        EntityManager entityManager = getReadEm();
+        Map<String, Object> hints = getReadOnlyHints();
+        return hints.isEmpty() ? entityManager.find(getModelClass(), id) : entityManager.find(getModelClass(), id, hints);
+    }
+    
+    /**
+     * Returns the in-process cache of entities by {@link CrudEntity#getId()} used by {@link #findById(Long)},
+     * or <code>null</code> if entities are not cached, which is the default.<p/>
+     * 
+     * Override this method to return a cache shared by all instances of the service (e.g. held in a static field)
+     * in order to enable caching. The cache is invalidated by every write operation of this service, and again after
+     * its transaction has completed (see {@link #getTransactionSynchronizationRegistry()}), but not by writes which bypass it (e.g. by another application or by a native query), hence its time-to-live
+     * bounds the staleness of the entities returned. As the cached entities are shared, they are detached after the
+     * transaction which loaded them ends and must not be modified; lazily loaded associations should not be accessed either.
+     */
+    protected ServiceCache<Long, T> getEntityCache() {
+        return null;
+    }
+    
+    /**
+     * Returns the in-process cache of the results of {@link #findBy(Map)}, {@link #findBy(Map, List, int, int)},
+     * {@link #findFieldsBy(Map, List, List, int, int)} and {@link #countBy(Map)} by entity type, predicates, orders, fields and page,
+     * or <code>null</code> if query results are not cached, which is the default.<p/>
+     * 
+     * Override this method to return a cache shared by all instances of the service (e.g. held in a static field)
+     * in order to enable caching. Every write operation of this service invalidates all query results, as does the completion of its
+     * transaction (see {@link #getEntityCache()}); the time-to-live of the cache is the maximum staleness of the results with respect to writes which bypass the service.
+     * The Lists returned from the cache are unmodifiable and, as for {@link #getEntityCache()}, the entities must not be modified.
+     */
+    protected ServiceCache<List<Object>, Object> getQueryCache() {
+        return null;
+    }
+    
+    /**
+     * Returns the key of the query result provided in the {@link #getQueryCache()},
+     * or <code>null</code> if query results are not cached.
+     */
+    private QueryCacheKey getQueryCacheKey(QueryKind kind, Map<String, String> predicates, List<SortOrder> orders, List<String> fields, int first, int max) {
+        ServiceCache<List<Object>, Object> cache = getQueryCache();
+        if (cache == null) {
+            return null;
+        }
+        // normalized to be equal regardless of the order of the predicates
+        Map<String, String> normalizedPredicates = predicates != null ? new TreeMap<>(predicates) : new TreeMap<String, String>();
+        return new QueryCacheKey(Arrays.<Object>asList(getModelClass(), kind, normalizedPredicates,
+                SortOrder.getShape(orders != null ? orders : NO_ORDERS), new ArrayList<>(fields), first, max), cache.getGeneration());
+    }
+    
+    private <R> R getCachedResult(QueryCacheKey key) {
+        return key != null ? (R) getQueryCache().get(key.key) : null;
+    }
+    
+    /**
+     * Caches the query result provided, unless the cache has been invalidated since the key has been created (i.e. before
+     * the query was executed) or the query has been executed within a transaction, and returns it.
+     */
+    private <R> R cacheResult(QueryCacheKey key, R result) {
+        if (key != null && !em.isJoinedToTransaction()) {
+            getQueryCache().put(key.key, result, key.generation);
+        }
+        return result;
+    }
+    
+    /**
+     * Caches the List provided as an unmodifiable List, as it is shared by all callers, and returns it;
+     * returns the List provided itself if query results are not cached.
+     */
+    private <E> List<E> cacheList(QueryCacheKey key, List<E> result) {
+        return key != null ? cacheResult(key, Collections.unmodifiableList(result)) : result;
+    }
+    
+    /**
+     * Returns the values of the fields provided (and of the id) of the entity with the {@link CrudEntity#getId()} provided
+     * by field name, or <code>null</code> if it is not found.
+     * 
+     * @see #findFieldsBy(Map, List, List, int, int)
+     */
+    @Transactional(Transactional.TxType.SUPPORTS)
+    public Map<String, Object> findFieldsById(Long id, List<String> fields) {
+        List<Map<String, Object>> ret = findFieldsBy(Collections.singletonMap("id", id.toString()), NO_ORDERS, fields, 0, 1);
+        return ret.isEmpty() ? null : ret.get(0);
     }
     
     /**
@@ -168,22 +605,307 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
      */
     public T save(@NotNull T entity) {        
         if (entity.getId() == null) {
-                em.persist(entity);
+            em.persist(entity);
+            if (entity.getId() == null) {
+                // the id is generated on insert only, but must be returned
+                flush();
+                onWrite(Collections.<Long>emptyList());
+                return entity;
+            }
         }
         else {
             entity = em.merge(entity);
         }
-        em.flush();
+        flushAfter(1);
+        onWrite(Collections.singletonList(entity.getId()));
         return entity;
     }
     
     /**
-     * Deletes the entity with the {@link CrudEntity#getId()} provided.
+     * Updates the existing entity provided if the value of its version attribute (annotated with <code>&#064;Version</code>)
+     * in the persistence storage still equals the <code>version</code> provided, and returns the entity with its new version.<p/>
+     * 
+     * In contrast to {@link #save(CrudIdentifiable)}, the entity is not loaded (merged) first, but updated by a single
+     * <code>UPDATE ... WHERE id = ? AND version = ?</code> statement setting all its non-collection attributes.
+     * As this bypasses entity lifecycle callbacks, the entity is validated explicitly.
+     * 
+     * @throws OptimisticLockException if there is no entity with the id and version provided
+     * @throws ConstraintViolationException if the entity is invalid
+     * @throws IllegalArgumentException if the entity has no version attribute
+     */
+    public T saveIfVersion(@NotNull T entity, @NotNull Object version) throws OptimisticLockException {
+        EntityMetadata.AttributeMetadata versionAttribute = getVersionAttribute();
+        Set<ConstraintViolation<T>> violations = validate(entity);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(new HashSet<ConstraintViolation<?>>(violations));
+        }
+        Object nextVersion = getNextVersion(versionAttribute, version);
+        
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaUpdate<T> query = cb.createCriteriaUpdate(getModelClass());
+        Root<T> from = query.from(getModelClass());
+        for (EntityMetadata.AttributeMetadata attribute : getMetadata().getAttributes().values()) {
+            if (!attribute.isCollection() && attribute != versionAttribute && !"id".equals(attribute.getName())) {
+                query.set(from.<Object>get(attribute.getName()), attribute.getValue(entity));
+            }
+        }
+        query.set(from.<Object>get(versionAttribute.getName()), nextVersion);
+        query.where(cb.equal(from.get("id"), entity.getId()), cb.equal(from.get(versionAttribute.getName()), version));
+        if (em.createQuery(query).executeUpdate() == 0) {
+            throw new OptimisticLockException("No " + getModelClass().getSimpleName() + " with id " + entity.getId()
+                    + " and version " + version, null, entity);
+        }
+        versionAttribute.setValue(entity, nextVersion);
+        onWrite(Collections.singletonList(entity.getId()));
+        return entity;
+    }
+    
+    /**
+     * Returns the metadata of the version attribute of the entity.
+     * 
+     * @throws IllegalArgumentException if the entity has no version attribute
+     */
+    protected EntityMetadata.AttributeMetadata getVersionAttribute() throws IllegalArgumentException {
+        EntityMetadata.AttributeMetadata ret = getMetadata().getVersionAttribute();
+        if (ret == null) {
+            throw new IllegalArgumentException("Entity has no version attribute: " + getModelClass().getName());
+        }
+        return ret;
+    }
+    
+    /**
+     * Updates only the attributes provided of the entity with the id provided to the values provided by a single
+     * <code>UPDATE</code> statement without loading the entity first, and returns whether the entity has been updated,
+     * i.e. whether it exists (and, if <code>version</code> is not <code>null</code>, whether its version still equals the version provided).
+     * If the entity has a version attribute, it is incremented.<p/>
+     * 
+     * Every value is validated against the Bean Validation constraints of its attribute only. As this bypasses entity lifecycle
+     * callbacks and entity-level constraints, use {@link #save(CrudIdentifiable)} for entities which rely on these.
+     * 
+     * @throws ConstraintViolationException if a value is invalid
+     * @throws IllegalArgumentException if an attribute is not a basic attribute or is the id / version attribute of the entity
+     */
+    public boolean patch(@NotNull Long id, @NotNull Map<String, Object> values, Object version) {
+        EntityMetadata metadata = getMetadata();
+        EntityMetadata.AttributeMetadata versionAttribute = version != null ? getVersionAttribute() : metadata.getVersionAttribute();
+        Set<ConstraintViolation<T>> violations = new HashSet<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            metadata.validateUpdatableField(entry.getKey());
+            violations.addAll(getValidator().validateValue(getModelClass(), entry.getKey(), entry.getValue()));
+        }
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(new HashSet<ConstraintViolation<?>>(violations));
+        }
+        
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaUpdate<T> query = cb.createCriteriaUpdate(getModelClass());
+        Root<T> from = query.from(getModelClass());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            query.set(from.<Object>get(entry.getKey()), entry.getValue());
+        }
+        Predicate where = cb.equal(from.get("id"), id);
+        if (versionAttribute != null) {
+            Path<Number> versionPath = from.get(versionAttribute.getName());
+            Object nextVersion = getNextVersion(versionAttribute, version);
+            if (version != null) {
+                query.set(from.<Object>get(versionAttribute.getName()), nextVersion);
+                where = cb.and(where, cb.equal(versionPath, version));
+            }
+            else if (nextVersion instanceof Number) {
+                query.set(versionPath, cb.sum(versionPath, 1));
+            }
+            else {
+                query.set(from.<Object>get(versionAttribute.getName()), nextVersion);
+            }
+        }
+        query.where(where);
+        if (em.createQuery(query).executeUpdate() == 0) {
+            return false;
+        }
+        onWrite(Collections.singletonList(id));
+        return true;
+    }
+    
+    /**
+     * Returns the version following the <code>version</code> provided: the next number for an <code>int</code>,
+     * <code>short</code> or <code>long</code> version attribute (<code>0</code> if <code>version</code> is <code>null</code>),
+     * or the current time for a {@link Timestamp} version attribute.
+     * 
+     * @throws IllegalArgumentException if the version attribute is of any other type, which JPA does not support
+     */
+    static Object getNextVersion(EntityMetadata.AttributeMetadata versionAttribute, Object version) throws IllegalArgumentException {
+        Class<?> type = QueryValues.wrap(versionAttribute.getJavaType());
+        if (type == Long.class) {
+            return version != null ? ((Number) version).longValue() + 1 : 0l;
+        }
+        if (type == Integer.class) {
+            return version != null ? ((Number) version).intValue() + 1 : 0;
+        }
+        if (type == Short.class) {
+            return (short) (version != null ? ((Number) version).shortValue() + 1 : 0);
+        }
+        if (type == Timestamp.class) {
+            return new Timestamp(System.currentTimeMillis());
+        }
+        throw new IllegalArgumentException("Unsupported type of version attribute " + versionAttribute.getName() + ": " + type.getName());
+    }
+    
+    /**
+     * Saves / Inserts / Updates all the entities provided and returns the updated entities in the same order.<p/>
+     * 
+     * In contrast to calling {@link #save(CrudIdentifiable)} for every entity, the persistence context is flushed only once
+     * (allowing the JPA provider to batch the JDBC statements) and then cleared; hence the entities returned are detached.
+     */
+    public List<T> saveAll(@NotNull List<T> entities) {
+        List<T> ret = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            if (entity.getId() == null) {
+                em.persist(entity);
+                ret.add(entity);
+            }
+            else {
+                ret.add(em.merge(entity));
+            }
+        }
+        flush();
+        em.clear();
+        List<Long> ids = new ArrayList<>(ret.size());
+        for (T entity : ret) {
+            ids.add(entity.getId());
+        }
+        onWrite(ids);
+        return ret;
+    }
+    
+    /**
+     * Executes all the operations provided in order, within a single transaction, and returns the resulting entity
+     * of every operation (<code>null</code> for a delete operation) in the same order.<p/>
+     * 
+     * In contrast to calling {@link #save(CrudIdentifiable)} / {@link #delete(Long)} for every operation,
+     * the persistence context is flushed only once, after the last operation. A delete operation deletes the entity
+     * as {@link #delete(Long)} does, i.e. it does nothing if there is no such entity.
+     * 
+     * @throws BatchOperation.FailedException if an operation fails, in which case the transaction is marked for rollback
+     */
+    public List<T> executeBatch(@NotNull List<BatchOperation<T>> operations) throws BatchOperation.FailedException {
+        List<T> ret = new ArrayList<>(operations.size());
+        int i = 0;
+        try {
+            for (; i < operations.size(); i++) {
+                BatchOperation<T> operation = operations.get(i);
+                switch (operation.getType()) {
+                    case CREATE:
+                        em.persist(operation.getEntity());
+                        ret.add(operation.getEntity());
+                        break;
+                    case UPDATE:
+                        ret.add(em.merge(operation.getEntity()));
+                        break;
+                    case DELETE:
+                        removeByIds(Collections.singletonList(operation.getId()));
+                        ret.add(null);
+                        break;
+                }
+            }
+            List<Long> ids = new ArrayList<>(operations.size());
+            for (BatchOperation<T> operation : operations) {
+                ids.add(operation.getId());
+            }
+            onWrite(ids);
+            for (T entity : ret) {
+                if (entity != null && entity.getId() == null) {
+                    // the id is generated on insert only, but must be returned
+                    flush();
+                    return ret;
+                }
+            }
+            flushAfter(operations.size());
+            return ret;
+        } catch (PersistenceException ex) {
+            setRollbackOnly();
+            throw new BatchOperation.FailedException(i < operations.size() ? i : -1, ex);
+        }
+    }
+    
+    /**
+     * Marks the current JTA transaction, if any, for rollback.
+     */
+    private void setRollbackOnly() {
+        TransactionSynchronizationRegistry registry = getTransactionSynchronizationRegistry();
+        if (registry != null && registry.getTransactionKey() != null) {
+            registry.setRollbackOnly();
+        }
+    }
+    
+    /**
+     * Validates the entity provided against its Bean Validation constraints
+     * and returns the constraint violations found, if any.
+     */
+    public Set<ConstraintViolation<T>> validate(T entity) {
+        return getValidator().validate(entity);
+    }
+    
+    /**
+     * Returns the Bean Validation validator used by {@link #validate(CrudIdentifiable)}. 
+     * Defaults to the validator of the default validator factory.
+     */
+    protected Validator getValidator() {
+        return DefaultValidatorHolder.VALIDATOR;
+    }
+    
+    /**
+     * Deletes the entity with the {@link CrudEntity#getId()} provided, or does nothing if there is no such entity.<p/>
+     * 
+     * If {@link #isDirectDeleteEnabled()}, this issues a single DELETE statement without loading the entity first.
      */
     public void delete(Long id) {
-        T entity = em.getReference(getModelClass(), id);
-        em.remove(entity);
-        em.flush();
+        deleteByIds(Collections.singletonList(id));
+    }
+    
+    /**
+     * Deletes the entities with the {@link CrudEntity#getId()}s provided; ids of which there is no entity are ignored.<p/>
+     * 
+     * If {@link #isDirectDeleteEnabled()}, this issues a single <code>DELETE ... WHERE id IN (...)</code> statement
+     * without loading the entities first; otherwise, every entity is removed from the persistence context individually.
+     */
+    public void deleteByIds(@NotNull Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        removeByIds(ids);
+        flushAfter(ids.size());
+        onWrite(ids);
+    }
+    
+    /**
+     * Deletes the entities with the ids provided, ignoring ids of which there is no entity, without flushing.
+     */
+    private void removeByIds(Collection<Long> ids) {
+        if (isDirectDeleteEnabled()) {
+            CriteriaDelete<T> query = em.getCriteriaBuilder().createCriteriaDelete(getModelClass());
+            Root<T> from = query.from(getModelClass());
+            query.where(from.get("id").in(ids));
+            em.createQuery(query).executeUpdate();
+        }
+        else {
+            for (Long id : ids) {
+                // rather than getReference(), which would fail (and roll back the transaction) for a missing entity
+                T entity = em.find(getModelClass(), id);
+                if (entity != null) {
+                    em.remove(entity);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns whether {@link #delete(Long)} and {@link #deleteByIds(Collection)} delete entities by a direct 
+     * DELETE statement rather than by loading and removing them from the persistence context.
+     * Note that a direct DELETE statement bypasses cascading and entity lifecycle callbacks (such as <code>&#064;PreRemove</code>).
+     * Override this method to return <code>false</code> if the entity relies on these; defaults to <code>true</code>.
+     */
+    protected boolean isDirectDeleteEnabled() {
+        return true;
     }
     
     /**
@@ -199,24 +921,432 @@ public abstract class CrudService<T extends CrudIdentifiable> implements Seriali
     /**
      * Deletes all entities which match the predicates provided.<p/>
      * 
-     * <b>Performance note:</b> This implementation is not optimized as it is built from a dynamic query.
-     * For production environments, implement this method explicitly by using named queries.
+     * <b>Performance note:</b> This implementation is built from a dynamic query which is cached as a named query
+     * per filter shape (see {@link #isQueryPlanCacheEnabled()}).
+     * For production environments, consider implementing this method explicitly by using named queries.
      */
     public void deleteBy(Map<String, String> predicates) {
-        CriteriaDelete<T> query = em.getCriteriaBuilder().createCriteriaDelete(getModelClass());
-        Root<T> from = query.from(getModelClass());
-        if (predicates != null) {
-            query.where(createPredicates(em.getCriteriaBuilder(), from, predicates));
+        List<QueryFilter> filters = parseFilters(predicates);
+        createUntypedQuery(em, QueryKind.DELETE, filters, NO_ORDERS, NO_FIELDS, null).executeUpdate();
+        flushAfter(1);
+        // the entities deleted are unknown
+        onWrite(null);
+    }
+    
+    /**
+     * Records a write operation of the entities with the ids provided (all entities if <code>ids</code> is <code>null</code>)
+     * for {@link #getReadEm()} and invalidates the caches.
+     */
+    private void onWrite(Collection<Long> ids) {
+        EntityManagerFactory entityManagerFactory = em.getEntityManagerFactory();
+        synchronized (LAST_WRITE_NANOS) {
+            LAST_WRITE_NANOS.put(entityManagerFactory, System.nanoTime());
+        }
+        invalidateCaches(ids);
+    }
+    
+    /**
+     * Invalidates the entities with the ids provided (all entities if <code>ids</code> is <code>null</code>)
+     * in the {@link #getEntityCache()}, and all query results in the {@link #getQueryCache()}.<p/>
+     * 
+     * If the write operation is joined to a transaction, the caches are invalidated again after the transaction has completed,
+     * as a concurrent read may have cached the entities as last committed in the meantime.
+     */
+    private void invalidateCaches(Collection<Long> ids) {
+        ServiceCache<Long, T> entityCache = getEntityCache();
+        ServiceCache<List<Object>, Object> queryCache = getQueryCache();
+        if (entityCache == null && queryCache == null) {
+            return;
         }
-        em.createQuery(query).executeUpdate();
+        CacheInvalidation invalidation = new CacheInvalidation(entityCache, queryCache, ids != null ? new ArrayList<>(ids) : null);
+        // the transaction's own reads must not be served from the cache either
+        invalidation.invalidate();
+        if (em.isJoinedToTransaction()) {
+            TransactionSynchronizationRegistry registry = getTransactionSynchronizationRegistry();
+            if (registry != null && registry.getTransactionKey() != null) {
+                try {
+                    registry.registerInterposedSynchronization(invalidation);
+                } catch (IllegalStateException ex) {
+                    // the transaction is completing already; the caches have been invalidated above
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the registry of the JTA transactions used to invalidate the caches after a write transaction has completed
+     * (see {@link #getEntityCache()}), or <code>null</code> if there is none, in which case the caches are invalidated
+     * only at the time of the write operation. By default, it is looked up from JNDI (<code>java:comp/TransactionSynchronizationRegistry</code>).
+     * 
+     * Extension point to add custom behavior.
+     */
+    protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        if (transactionSynchronizationRegistry == null) {
+            try {
+                transactionSynchronizationRegistry = (TransactionSynchronizationRegistry) new InitialContext().lookup(TRANSACTION_SYNCHRONIZATION_REGISTRY);
+            } catch (NamingException ex) {
+                return null;
+            }
+        }
+        return transactionSynchronizationRegistry;
+    }
+    
+    /**
+     * Returns the {@link FlushStrategy} applied by the write operations of this service.
+     * Override this method to change the strategy; defaults to {@link FlushStrategy#IMMEDIATE}.
+     */
+    protected FlushStrategy getFlushStrategy() {
+        return FlushStrategy.IMMEDIATE;
+    }
+    
+    /**
+     * Returns the number of write operations after which the persistence context is flushed
+     * if the {@link FlushStrategy#EVERY_N} strategy is applied. Override this method to change the interval; defaults to <code>100</code>.
+     */
+    protected int getFlushInterval() {
+        return 100;
+    }
+    
+    /**
+     * Flushes the persistence context.
+     */
+    protected void flush() {
         em.flush();
+        pendingOperations = 0;
+    }
+    
+    /**
+     * Flushes the persistence context after the number of write operations provided
+     * if required by the {@link FlushStrategy} applied.
+     */
+    private void flushAfter(int operations) {
+        switch (getFlushStrategy()) {
+            case IMMEDIATE:
+                flush();
+                break;
+            case EVERY_N:
+                pendingOperations += operations;
+                if (pendingOperations >= getFlushInterval()) {
+                    flush();
+                }
+                break;
+            case ON_COMMIT:
+                break;
+        }
+    }
+    
+    /**
+     * Invalidates the caches for the entities with the ids provided (all entities if <code>ids</code> is <code>null</code>);
+     * registered to do so again after the write transaction has completed.
+     */
+    private static class CacheInvalidation implements Synchronization {
+        private final ServiceCache<Long, ?> entityCache;
+        private final ServiceCache<List<Object>, Object> queryCache;
+        private final Collection<Long> ids;
+
+        public CacheInvalidation(ServiceCache<Long, ?> entityCache, ServiceCache<List<Object>, Object> queryCache, Collection<Long> ids) {
+            this.entityCache = entityCache;
+            this.queryCache = queryCache;
+            this.ids = ids;
+        }
+        
+        public void invalidate() {
+            if (entityCache != null) {
+                if (ids == null) {
+                    entityCache.invalidateAll();
+                }
+                else {
+                    for (Long id : ids) {
+                        if (id != null) {
+                            entityCache.invalidate(id);
+                        }
+                    }
+                }
+            }
+            if (queryCache != null) {
+                queryCache.invalidateAll();
+            }
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            invalidate();
+        }
+    }
+    
+    /**
+     * The key of a query result in the {@link #getQueryCache()}, along with the cache's generation when the key has been created.
+     */
+    private static class QueryCacheKey {
+        private final List<Object> key;
+        private final long generation;
+
+        public QueryCacheKey(List<Object> key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+    
+    // lazily initialized on first access
+    private static class DefaultValidatorHolder {
+        private static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
+    }
+    
+    private class ChunkIterator implements Iterator<T> {
+        private final Map<String, String> predicates;
+        private final int chunkSize;
+        private Long lastId;
+        private List<T> chunk;
+        private int index = 0;
+        private boolean exhausted = false;
+
+        public ChunkIterator(Map<String, String> predicates, Long afterId, int chunkSize) {
+            this.predicates = predicates;
+            this.lastId = afterId;
+            this.chunkSize = chunkSize;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (chunk != null && index < chunk.size()) {
+                return true;
+            }
+            if (exhausted) {
+                return false;
+            }
+            if (chunk != null) {
+                release(chunk);
+                if (chunk.size() < chunkSize) {
+                    // the last chunk was not full, thus there are no more entities
+                    chunk = null;
+                    exhausted = true;
+                    return false;
+                }
+            }
+            chunk = findAfter(predicates, lastId, chunkSize);
+            index = 0;
+            exhausted = chunk.isEmpty();
+            return !exhausted;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T ret = chunk.get(index++);
+            lastId = ret.getId();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Returns whether the queries of {@link #findBy(Map)}, {@link #findBy(Map, int, int)}, {@link #findAfter(Map, Long, int)},
+     * {@link #countBy(Map)} and {@link #deleteBy(Map)} are cached as named queries.<p/>
+     * 
+     * If enabled, the query for every distinct filter "shape" (i.e. the same attributes with the same {@link QueryPredicate}s,
+     * regardless of the values) is built only once and registered as a parameterized named query
+     * by {@link EntityManagerFactory#addNamedQuery(String, Query)} which the JPA provider compiles only once;
+     * subsequent queries of the same shape only bind the actual values as query parameters.
+     * At most {@link #getMaxNamedQueries()} named queries are registered.
+     * Override this method to return <code>false</code> if the JPA provider doesn't support this; defaults to <code>true</code>.
+     */
+    protected boolean isQueryPlanCacheEnabled() {
+        return true;
+    }
+    
+    /**
+     * Returns the maximum number of named queries registered by {@link #isQueryPlanCacheEnabled()} per {@link EntityManagerFactory}
+     * (for all entity types), thus bounding the memory they occupy in the JPA provider, as a client can request any number
+     * of distinct filter shapes, orders and fields. Once the limit is reached, queries of further shapes are built and compiled
+     * on every execution. Concurrent registrations may exceed the limit slightly. Override this method to change the limit;
+     * defaults to <code>500</code>.
+     */
+    protected int getMaxNamedQueries() {
+        return 500;
+    }
+    
+    /**
+     * Parses the filters for the predicates provided and resolves their value types from the attribute types,
+     * so that the values are bound as parameters of the attribute's type rather than as Strings or casts.
+     */
+    private List<QueryFilter> parseFilters(Map<String, String> predicates) {
+        List<QueryFilter> filters = QueryFilter.parse(predicates);
+        if (filters.isEmpty()) {
+            return filters;
+        }
+        EntityMetadata metadata = getMetadata();
+        List<QueryFilter> ret = new ArrayList<>(filters.size());
+        for (QueryFilter filter : filters) {
+            ret.add(filter.withAttributeType(metadata.getAttributeType(filter)));
+        }
+        return ret;
+    }
+    
+    /**
+     * Creates the query of the kind provided for the filters provided and binds the filter values as parameters.
+     * If <code>resultType</code> is <code>null</code>, an untyped query is created.
+     */
+    private <R> TypedQuery<R> createQuery(EntityManager entityManager, QueryKind kind, List<QueryFilter> filters, List<SortOrder> orders, List<String> fields, Class<R> resultType) {
+        return (TypedQuery<R>) createUntypedQuery(entityManager, kind, filters, orders, fields, resultType);
+    }
+    
+    private Query createUntypedQuery(EntityManager entityManager, QueryKind kind, List<QueryFilter> filters, List<SortOrder> orders, List<String> fields, Class<?> resultType) {
+        Query query;
+        String name = isQueryPlanCacheEnabled() ? getNamedQuery(entityManager, kind, filters, orders, fields) : null;
+        if (name != null) {
+            query = resultType != null ? entityManager.createNamedQuery(name, resultType) : entityManager.createNamedQuery(name);
+        }
+        else {
+            query = buildQuery(entityManager, kind, filters, orders, fields);
+        }
+        for (int i = 0; i < filters.size(); i++) {
+            List<Object> values = filters.get(i).getParameterValues();
+            for (int j = 0; j < values.size(); j++) {
+                query.setParameter(getParameterName(i, j), values.get(j));
+            }
+        }
+        return query;
+    }
+    
+    /**
+     * Returns the name of the named query of the kind provided for the shape of the filters provided,
+     * registering it first if required; or returns <code>null</code> if {@link #getMaxNamedQueries()} named queries
+     * have been registered already.
+     */
+    private String getNamedQuery(EntityManager entityManager, QueryKind kind, List<QueryFilter> filters, List<SortOrder> orders, List<String> fields) {
+        EntityManagerFactory entityManagerFactory = entityManager.getEntityManagerFactory();
+        String name = NAMED_QUERY_PREFIX + getModelClass().getName() + "." + kind.name() + QueryFilter.getShape(filters);
+        if (!orders.isEmpty()) {
+            name += SortOrder.getShape(orders);
+        }
+        if (!fields.isEmpty()) {
+            name += fields;
+        }
+        Set<String> registered;
+        synchronized (NAMED_QUERIES) {
+            registered = NAMED_QUERIES.get(entityManagerFactory);
+            if (registered == null) {
+                registered = new HashSet<>();
+                NAMED_QUERIES.put(entityManagerFactory, registered);
+            }
+        }
+        synchronized (registered) {
+            if (registered.contains(name)) {
+                return name;
+            }
+            if (registered.size() >= getMaxNamedQueries()) {
+                // named queries cannot be removed from the EntityManagerFactory again
+                return null;
+            }
+        }
+        // concurrent registration of the same query is harmless
+        entityManagerFactory.addNamedQuery(name, buildQuery(entityManager, kind, filters, orders, fields));
+        synchronized (registered) {
+            registered.add(name);
+        }
+        return name;
     }
     
-    private <T> Predicate[] createPredicates(CriteriaBuilder criteriaBuilder, Root<T> root, Map<String, String> predicates) {
-        List<Predicate> ret = new ArrayList<>();
-        for (Map.Entry<String, String> entry : predicates.entrySet()) {
-            ret.add(QueryPredicate.createPredicate(criteriaBuilder, root, entry.getKey(), entry.getValue()));
+    /**
+     * Builds the parameterized query of the kind provided for the filters provided.
+     */
+    private Query buildQuery(EntityManager entityManager, QueryKind kind, List<QueryFilter> filters, List<SortOrder> orders, List<String> fields) {
+        CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+        switch (kind) {
+            case COUNT: {
+                CriteriaQuery<Long> query = criteriaBuilder.createQuery(Long.class);
+                Root<T> from = query.from(getModelClass());
+                query.select(criteriaBuilder.count(from));
+                query.where(createPredicates(criteriaBuilder, from, filters));
+                return entityManager.createQuery(query);
+            }
+            case DELETE: {
+                CriteriaDelete<T> query = criteriaBuilder.createCriteriaDelete(getModelClass());
+                Root<T> from = query.from(getModelClass());
+                query.where(createPredicates(criteriaBuilder, from, filters));
+                return entityManager.createQuery(query);
+            }
+            case FIND_FIELDS: {
+                CriteriaQuery<Tuple> query = criteriaBuilder.createTupleQuery();
+                Root<T> from = query.from(getModelClass());
+                List<Selection<?>> selections = new ArrayList<>(fields.size());
+                for (String field : fields) {
+                    selections.add(from.get(field).alias(field));
+                }
+                query.multiselect(selections);
+                query.where(createPredicates(criteriaBuilder, from, filters));
+                query.orderBy(createOrders(criteriaBuilder, from, orders));
+                return entityManager.createQuery(query);
+            }
+            default: {
+                CriteriaQuery<T> query = criteriaBuilder.createQuery(getModelClass());
+                Root<T> from = query.from(getModelClass());
+                query.select(from);
+                List<Predicate> where = new ArrayList<>(Arrays.asList(createPredicates(criteriaBuilder, from, filters)));
+                if (kind == QueryKind.FIND_AFTER) {
+                    where.add(criteriaBuilder.greaterThan(from.<Long>get("id"), criteriaBuilder.parameter(Long.class, AFTER_PARAMETER)));
+                }
+                query.where(where.toArray(new Predicate[where.size()]));
+                if (kind != QueryKind.FIND) {
+                    query.orderBy(createOrders(criteriaBuilder, from, orders));
+                }
+                return entityManager.createQuery(query);
+            }
         }
-        return ret.toArray(new Predicate[ret.size()]);
+    }
+    
+    private Predicate[] createPredicates(CriteriaBuilder criteriaBuilder, Root<T> root, List<QueryFilter> filters) {
+        Predicate[] ret = new Predicate[filters.size()];
+        for (int i = 0; i < filters.size(); i++) {
+            QueryFilter filter = filters.get(i);
+            Class<?>[] types = filter.getParameterTypes();
+            Expression<?>[] parameters = new Expression<?>[types.length];
+            for (int j = 0; j < types.length; j++) {
+                parameters[j] = criteriaBuilder.parameter(types[j], getParameterName(i, j));
+            }
+            ret[i] = filter.getPredicate().create(criteriaBuilder, root, filter.getAttribute(), parameters);
+        }
+        return ret;
+    }
+    
+    /**
+     * Creates the orders provided, followed by the order by id which makes the order unique, thus pages consistent.
+     */
+    private List<Order> createOrders(CriteriaBuilder criteriaBuilder, Root<T> root, List<SortOrder> orders) {
+        List<Order> ret = new ArrayList<>(orders.size() + 1);
+        boolean unique = false;
+        for (SortOrder order : orders) {
+            Expression<?> path = root.get(order.getAttribute());
+            ret.add(order.isAscending() ? criteriaBuilder.asc(path) : criteriaBuilder.desc(path));
+            unique |= "id".equals(order.getAttribute());
+        }
+        if (!unique) {
+            ret.add(criteriaBuilder.asc(root.get("id")));
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns the name of the <code>operand</code>th query parameter of the <code>filter</code>th filter.
+     */
+    private static String getParameterName(int filter, int operand) {
+        return operand == 0 ? FILTER_PARAMETER_PREFIX + filter : FILTER_PARAMETER_PREFIX + filter + "_" + operand;
+    }
+    
+    /**
+     * The kinds of queries built from filters.
+     */
+    private static enum QueryKind {
+        FIND, FIND_ORDERED, FIND_AFTER, FIND_FIELDS, COUNT, DELETE
     }
 }
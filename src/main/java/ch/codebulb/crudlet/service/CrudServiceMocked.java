@@ -2,17 +2,43 @@ package ch.codebulb.crudlet.service;
 
 import ch.codebulb.crudlet.model.CrudIdentifiable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import javax.persistence.OptimisticLockException;
 
 /**
  * <p>
  * A mocked {@link CrudService} implementation which stores entities in a
- * {@link HashMap} rather than persisting them in an actual persistence
+ * {@link ConcurrentSkipListMap} rather than persisting them in an actual persistence
  * storage.</p>
  *
  * <p>
+ * The service is thread-safe: reads and unconditional writes do not lock, and ids are generated atomically.
+ * The conditional updates {@link #saveIfVersion(CrudIdentifiable, Object)} and {@link #patch(Long, Map, Object)}
+ * lock only a stripe of the ids, so that concurrent updates of the same entity cannot both succeed, and replace the stored entity
+ * only if it has not been deleted concurrently; {@link #patch(Long, Map, Object)} updates a copy of the stored entity
+ * rather than the entity itself.
+ * As the entities are stored by id order, reads need not sort them by id.</p>
+ *
+ * <p>
+ * The <code>findBy()</code>, <code>countBy()</code> and <code>deleteBy()</code> filters are evaluated in memory
+ * with the semantics of the {@link QueryPredicate}s: the filter values are converted to the attributes' types and the
+ * attributes' accessors are resolved only once per call, and a <code>LIKE</code> pattern is compiled only once.
+ * As in SQL, an attribute which is <code>null</code> matches no filter. Likewise, the accessors of the attributes
+ * to sort by and of the fields to select are resolved only once per call.</p>
+ *
+ * <p>
  * Whilst of no use in a real-world production environment, this class might
  * come in handy if you want to try something out without having a proper
  * database / persistence configuration set up. You may then use a
@@ -23,12 +49,13 @@ import java.util.Map;
 // based on https://github.com/codebulb/crudfaces/blob/master/src/main/java/ch/codebulb/crudfaces/service/CrudServiceMocked.java
 // TODO Add cascading support
 public abstract class CrudServiceMocked<T extends CrudIdentifiable> extends CrudService<T> {  
-    private final Map<Long, T> ENTITIES = new HashMap<>();
-    private Long currentId = 0L;
+    private final ConcurrentNavigableMap<Long, T> ENTITIES = new ConcurrentSkipListMap<>();
+    private final AtomicLong currentId = new AtomicLong();
+    private final ReentrantLock[] locks = createLocks(16);
     
     @Override
     public T findById(Long id) {
-        return ENTITIES.get(id);
+        return id != null ? ENTITIES.get(id) : null;
     }
     
     @Override
@@ -45,8 +72,7 @@ public abstract class CrudServiceMocked<T extends CrudIdentifiable> extends Crud
     public T save(T entity) {        
         // CREATE
         if (entity.getId() == null) {
-            currentId = ++currentId;
-            entity.setId(currentId);
+            entity.setId(currentId.incrementAndGet());
         }
         // UPDATE
         ENTITIES.put(entity.getId(), entity);
@@ -54,23 +80,389 @@ public abstract class CrudServiceMocked<T extends CrudIdentifiable> extends Crud
         return entity;
     }
     
+    @Override
+    public T saveIfVersion(T entity, Object version) throws OptimisticLockException {
+        EntityMetadata.AttributeMetadata versionAttribute = getVersionAttribute();
+        if (entity.getId() == null) {
+            throw new OptimisticLockException("No entity with id null and version " + version, null, entity);
+        }
+        ReentrantLock lock = getLock(entity.getId());
+        lock.lock();
+        try {
+            T existing = ENTITIES.get(entity.getId());
+            if (existing == null || !version.equals(versionAttribute.getValue(existing))) {
+                throw new OptimisticLockException("No entity with id " + entity.getId() + " and version " + version, null, entity);
+            }
+            versionAttribute.setValue(entity, getNextVersion(versionAttribute, version));
+            if (!replace(existing, entity)) {
+                versionAttribute.setValue(entity, version);
+                throw new OptimisticLockException("No entity with id " + entity.getId() + " and version " + version, null, entity);
+            }
+            return entity;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean patch(Long id, Map<String, Object> values, Object version) {
+        EntityMetadata metadata = getMetadata();
+        EntityMetadata.AttributeMetadata versionAttribute = version != null ? getVersionAttribute() : metadata.getVersionAttribute();
+        for (String attribute : values.keySet()) {
+            metadata.validateUpdatableField(attribute);
+        }
+        if (id == null) {
+            return false;
+        }
+        ReentrantLock lock = getLock(id);
+        lock.lock();
+        try {
+            T existing = ENTITIES.get(id);
+            if (existing == null || (version != null && !version.equals(versionAttribute.getValue(existing)))) {
+                return false;
+            }
+            // never modify the stored entity, which may be read concurrently
+            T patched = copy(existing, metadata);
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                metadata.getAttribute(entry.getKey()).setValue(patched, entry.getValue());
+            }
+            if (versionAttribute != null) {
+                versionAttribute.setValue(patched, getNextVersion(versionAttribute, versionAttribute.getValue(existing)));
+            }
+            return replace(existing, patched);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Replaces the stored entity provided by the entity provided, unless it has been deleted concurrently
+     * (as {@link #delete(Long)} does not lock), and returns whether it has been replaced.
+     */
+    private boolean replace(T existing, T entity) {
+        return ENTITIES.replace(existing.getId(), existing, entity);
+    }
+    
+    private ReentrantLock getLock(Long id) {
+        int hash = id.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+    
+    private static ReentrantLock[] createLocks(int stripes) {
+        ReentrantLock[] ret = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            ret[i] = new ReentrantLock();
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns a new entity with the same values of all the attributes of the entity provided.
+     */
+    private T copy(T entity, EntityMetadata metadata) {
+        T ret = create();
+        for (EntityMetadata.AttributeMetadata attribute : metadata.getAttributes().values()) {
+            attribute.setValue(ret, attribute.getValue(entity));
+        }
+        return ret;
+    }
+    
+    @Override
+    public List<T> saveAll(List<T> entities) {
+        List<T> ret = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            ret.add(save(entity));
+        }
+        return ret;
+    }
+    
+    @Override
+    public List<T> executeBatch(List<BatchOperation<T>> operations) {
+        List<T> ret = new ArrayList<>(operations.size());
+        for (BatchOperation<T> operation : operations) {
+            if (operation.getType() == BatchOperation.Type.DELETE) {
+                delete(operation.getId());
+                ret.add(null);
+            }
+            else {
+                ret.add(save(operation.getEntity()));
+            }
+        }
+        return ret;
+    }
+    
     @Override
     public void delete(Long id) {
-        ENTITIES.remove(id);
+        if (id != null) {
+            ENTITIES.remove(id);
+        }
+    }
+
+    @Override
+    public void deleteByIds(Collection<Long> ids) {
+        for (Long id : ids) {
+            delete(id);
+        }
     }
 
     @Override
     public List<T> findBy(Map<String, String> predicates) {
-        throw new UnsupportedOperationException("Custom filtering not implemented.");
+        return filter(ENTITIES.values(), compile(predicates), -1);
+    }
+
+    @Override
+    public List<T> findBy(Map<String, String> predicates, List<SortOrder> orders, int first, int max) {
+        boolean ordered = orders != null && !orders.isEmpty();
+        // ordered by id; without orders, no entity after the page is required
+        List<T> ret = filter(ENTITIES.values(), compile(predicates), ordered || max < 0 ? -1 : (int) Math.min((long) first + max, Integer.MAX_VALUE));
+        if (ordered) {
+            // stable sort, thus ordered by id as the last order
+            Collections.sort(ret, new AttributeOrder(getMetadata(), orders));
+        }
+        int from = Math.min(first, ret.size());
+        int to = max < 0 ? ret.size() : (int) Math.min((long) from + max, ret.size());
+        return new ArrayList<>(ret.subList(from, to));
+    }
+
+    @Override
+    public List<Map<String, Object>> findFieldsBy(Map<String, String> predicates, List<SortOrder> orders, List<String> fields, int first, int max) {
+        List<EntityMetadata.AttributeMetadata> attributes = getAttributes(fields);
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (T entity : findBy(predicates, orders, first, max)) {
+            ret.add(getFields(entity, attributes));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Object> findFieldsById(Long id, List<String> fields) {
+        List<EntityMetadata.AttributeMetadata> attributes = getAttributes(fields);
+        T entity = findById(id);
+        return entity != null ? getFields(entity, attributes) : null;
+    }
+    
+    /**
+     * Resolves the metadata of all the attributes with the names provided.
+     * 
+     * @throws IllegalArgumentException if there is no such attribute
+     */
+    private List<EntityMetadata.AttributeMetadata> getAttributes(List<String> names) throws IllegalArgumentException {
+        EntityMetadata metadata = getMetadata();
+        List<EntityMetadata.AttributeMetadata> ret = new ArrayList<>(names.size());
+        for (String name : names) {
+            ret.add(getAttribute(metadata, name));
+        }
+        return ret;
+    }
+    
+    private static EntityMetadata.AttributeMetadata getAttribute(EntityMetadata metadata, String name) throws IllegalArgumentException {
+        EntityMetadata.AttributeMetadata ret = metadata.getAttribute(name);
+        if (ret == null) {
+            throw new IllegalArgumentException("Unknown attribute: " + name);
+        }
+        return ret;
+    }
+    
+    private static Map<String, Object> getFields(CrudIdentifiable entity, List<EntityMetadata.AttributeMetadata> attributes) {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("id", entity.getId());
+        for (EntityMetadata.AttributeMetadata attribute : attributes) {
+            ret.put(attribute.getName(), attribute.getValue(entity));
+        }
+        return ret;
+    }
+
+    @Override
+    public List<T> findAfter(Map<String, String> predicates, Long afterId, int max) {
+        Collection<T> entities = afterId != null ? ENTITIES.tailMap(afterId, false).values() : ENTITIES.values();
+        return filter(entities, compile(predicates), max);
+    }
+
+    @Override
+    protected void release(List<T> chunk) {
+        // nothing to release
     }
 
     @Override
     public long countBy(Map<String, String> predicates) {
-        throw new UnsupportedOperationException("Custom filtering not implemented.");
+        List<AttributeFilter> filters = compile(predicates);
+        if (filters.isEmpty()) {
+            return ENTITIES.size();
+        }
+        long ret = 0;
+        for (T entity : ENTITIES.values()) {
+            if (matches(entity, filters)) {
+                ret++;
+            }
+        }
+        return ret;
     }
 
     @Override
     public void deleteBy(Map<String, String> predicates) {
-        throw new UnsupportedOperationException("Custom filtering not implemented.");
+        List<AttributeFilter> filters = compile(predicates);
+        if (filters.isEmpty()) {
+            ENTITIES.clear();
+            return;
+        }
+        for (Map.Entry<Long, T> entry : ENTITIES.entrySet()) {
+            if (matches(entry.getValue(), filters)) {
+                ENTITIES.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Compiles the filters for all the query parameters provided, as parsed by {@link QueryFilter#parse(Map)}.
+     * 
+     * @throws IllegalArgumentException if a filter does not apply to an attribute of the entity or its value is invalid
+     */
+    private List<AttributeFilter> compile(Map<String, String> predicates) throws IllegalArgumentException {
+        List<QueryFilter> filters = QueryFilter.parse(predicates);
+        if (filters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        EntityMetadata metadata = getMetadata();
+        List<AttributeFilter> ret = new ArrayList<>(filters.size());
+        for (QueryFilter filter : filters) {
+            metadata.validate(filter);
+            ret.add(new AttributeFilter(metadata.getAttribute(filter.getAttribute()), filter.withAttributeType(metadata.getAttributeType(filter))));
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns at most <code>max</code> of the entities provided which match all the filters provided, in the same order.
+     * A negative <code>max</code> value means no limit.
+     */
+    private static <T> List<T> filter(Collection<T> entities, List<AttributeFilter> filters, int max) {
+        List<T> ret = new ArrayList<>();
+        if (max == 0) {
+            return ret;
+        }
+        for (T entity : entities) {
+            if (matches(entity, filters)) {
+                ret.add(entity);
+                if (ret.size() == max) {
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+    
+    private static boolean matches(Object entity, List<AttributeFilter> filters) {
+        for (AttributeFilter filter : filters) {
+            if (!filter.matches(entity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * A {@link QueryFilter} compiled for in-memory evaluation: its attribute's accessor is resolved,
+     * its values are converted to the attribute's type and a <code>LIKE</code> pattern is compiled to a regular expression.
+     */
+    private static class AttributeFilter {
+        private final EntityMetadata.AttributeMetadata attribute;
+        private final EntityMetadata.AttributeMetadata idAttribute;
+        private final QueryPredicate predicate;
+        private final List<Object> values;
+        private final Set<Object> valueSet;
+        private final Pattern pattern;
+
+        public AttributeFilter(EntityMetadata.AttributeMetadata attribute, QueryFilter filter) {
+            this.attribute = attribute;
+            this.predicate = filter.getPredicate();
+            List<Object> values = filter.getParameterValues();
+            this.values = predicate.isList() ? (List<Object>) values.get(0) : values;
+            this.idAttribute = predicate == QueryPredicate.ID ? EntityMetadata.of(attribute.getJavaType(), null).getAttribute("id") : null;
+            this.valueSet = predicate == QueryPredicate.IN ? new HashSet<>(this.values) : null;
+            this.pattern = predicate == QueryPredicate.LIKE ? compileLike((String) this.values.get(0)) : null;
+        }
+
+        public boolean matches(Object entity) {
+            Object value = attribute.getValue(entity);
+            if (value == null) {
+                return false;
+            }
+            switch (predicate) {
+                case LE:
+                    return ((Comparable) value).compareTo(values.get(0)) <= 0;
+                case GE:
+                    return ((Comparable) value).compareTo(values.get(0)) >= 0;
+                case BETWEEN:
+                    return ((Comparable) value).compareTo(values.get(0)) >= 0 && ((Comparable) value).compareTo(values.get(1)) <= 0;
+                case LIKE:
+                    return pattern.matcher(String.valueOf(value)).matches();
+                case ID:
+                    return idAttribute != null && values.get(0).equals(idAttribute.getValue(value));
+                case IN:
+                    return valueSet.contains(value);
+                default:
+                    return values.get(0).equals(value);
+            }
+        }
+
+        /**
+         * Compiles the SQL <code>LIKE</code> pattern provided, with the <code>%</code> and <code>_</code> wildcards,
+         * to a regular expression.
+         */
+        private static Pattern compileLike(String like) {
+            StringBuilder sb = new StringBuilder();
+            int literal = 0;
+            for (int i = 0; i < like.length(); i++) {
+                char c = like.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (i > literal) {
+                        sb.append(Pattern.quote(like.substring(literal, i)));
+                    }
+                    sb.append(c == '%' ? ".*" : ".");
+                    literal = i + 1;
+                }
+            }
+            if (like.length() > literal) {
+                sb.append(Pattern.quote(like.substring(literal)));
+            }
+            return Pattern.compile(sb.toString(), Pattern.DOTALL);
+        }
+    }
+    
+    /**
+     * Compares entities by the values of their attributes, as resolved only once.
+     */
+    private static class AttributeOrder implements Comparator<Object> {
+        private final List<EntityMetadata.AttributeMetadata> attributes;
+        private final boolean[] ascending;
+
+        public AttributeOrder(EntityMetadata metadata, List<SortOrder> orders) throws IllegalArgumentException {
+            this.attributes = new ArrayList<>(orders.size());
+            this.ascending = new boolean[orders.size()];
+            for (int i = 0; i < orders.size(); i++) {
+                attributes.add(getAttribute(metadata, orders.get(i).getAttribute()));
+                ascending[i] = orders.get(i).isAscending();
+            }
+        }
+
+        @Override
+        public int compare(Object o1, Object o2) {
+            for (int i = 0; i < attributes.size(); i++) {
+                Comparable value1 = (Comparable) attributes.get(i).getValue(o1);
+                Comparable value2 = (Comparable) attributes.get(i).getValue(o2);
+                int ret;
+                if (value1 == null || value2 == null) {
+                    // nulls first
+                    ret = value1 == value2 ? 0 : (value1 == null ? -1 : 1);
+                }
+                else {
+                    ret = value1.compareTo(value2);
+                }
+                if (ret != 0) {
+                    return ascending[i] ? ret : -ret;
+                }
+            }
+            return 0;
+        }
     }
 }
@@ -0,0 +1,439 @@
+package ch.codebulb.crudlet.service;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * The attributes of an entity class as required to validate and build queries for it:
+ * their names, types, whether they are associations, and whether they are indexed / sortable;
+ * as well as its version attribute, if any.<p/>
+ *
+ * The metadata is resolved only once per entity class and JPA metamodel by {@link #of(Class, Metamodel)};
+ * if no metamodel is available (e.g. for a {@link CrudServiceMocked}), it is resolved from the entity class' fields.
+ */
+public class EntityMetadata {
+    // the metadata per entity class, per metamodel
+    private static final Map<Metamodel, ConcurrentMap<Class<?>, EntityMetadata>> REGISTRY = new WeakHashMap<>();
+    // the metadata resolved without a metamodel
+    private static final ConcurrentMap<Class<?>, EntityMetadata> UNMANAGED = new ConcurrentHashMap<>();
+    // the REGISTRY entry of the metamodel last looked up, to look it up without locking
+    private static volatile RegistryEntry current;
+
+    private final Class<?> modelClass;
+    private final Map<String, AttributeMetadata> attributes;
+    private final AttributeMetadata versionAttribute;
+
+    private EntityMetadata(Class<?> modelClass, Map<String, AttributeMetadata> attributes, String versionAttribute) {
+        this.modelClass = modelClass;
+        this.attributes = Collections.unmodifiableMap(attributes);
+        this.versionAttribute = versionAttribute != null ? attributes.get(versionAttribute) : null;
+    }
+
+    /**
+     * Returns the metadata of the entity class provided, as resolved from the JPA metamodel provided
+     * or, if it is <code>null</code>, from the entity class' fields.
+     */
+    public static EntityMetadata of(Class<?> modelClass, Metamodel metamodel) {
+        ConcurrentMap<Class<?>, EntityMetadata> metadata = metamodel != null ? getRegistryEntry(metamodel) : UNMANAGED;
+        EntityMetadata ret = metadata.get(modelClass);
+        if (ret == null) {
+            ret = metamodel != null ? resolve(modelClass, metamodel) : resolve(modelClass);
+            EntityMetadata existing = metadata.putIfAbsent(modelClass, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    private static ConcurrentMap<Class<?>, EntityMetadata> getRegistryEntry(Metamodel metamodel) {
+        RegistryEntry entry = current;
+        if (entry != null && entry.metamodel.get() == metamodel) {
+            return entry.metadata;
+        }
+        ConcurrentMap<Class<?>, EntityMetadata> metadata;
+        synchronized (REGISTRY) {
+            metadata = REGISTRY.get(metamodel);
+            if (metadata == null) {
+                metadata = new ConcurrentHashMap<>();
+                REGISTRY.put(metamodel, metadata);
+            }
+        }
+        current = new RegistryEntry(metamodel, metadata);
+        return metadata;
+    }
+
+    public Class<?> getModelClass() {
+        return modelClass;
+    }
+
+    /**
+     * Returns the metadata of all attributes by attribute name.
+     */
+    public Map<String, AttributeMetadata> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the metadata of the attribute with the name provided, or <code>null</code> if there is no such attribute.
+     */
+    public AttributeMetadata getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * Returns whether the entity has a version attribute (annotated with <code>&#064;Version</code>).
+     */
+    public boolean hasVersion() {
+        return versionAttribute != null;
+    }
+
+    /**
+     * Returns the metadata of the version attribute (annotated with <code>&#064;Version</code>),
+     * or <code>null</code> if the entity has no version attribute.
+     */
+    public AttributeMetadata getVersionAttribute() {
+        return versionAttribute;
+    }
+
+    /**
+     * Returns the value of the version attribute of the entity provided,
+     * or <code>null</code> if the entity has no version attribute.
+     */
+    public Object getVersion(Object entity) {
+        return versionAttribute != null ? versionAttribute.getValue(entity) : null;
+    }
+
+    /**
+     * Returns the type of the attribute the filter provided compares to
+     * (for the {@link QueryPredicate#ID} filter: the type of the id of the associated entity),
+     * or <code>null</code> if it is unknown.
+     */
+    public Class<?> getAttributeType(QueryFilter filter) {
+        AttributeMetadata attribute = attributes.get(filter.getAttribute());
+        if (attribute == null) {
+            return null;
+        }
+        return filter.getPredicate() == QueryPredicate.ID ? attribute.getIdType() : attribute.getJavaType();
+    }
+
+    /**
+     * Checks whether the filter provided applies to an attribute of this entity and whether its value
+     * matches the attribute's type.
+     *
+     * @throws IllegalArgumentException with the reason if the filter is invalid
+     */
+    public void validate(QueryFilter filter) throws IllegalArgumentException {
+        AttributeMetadata attribute = attributes.get(filter.getAttribute());
+        if (attribute == null) {
+            throw new IllegalArgumentException("Unknown attribute: " + filter.getAttribute());
+        }
+        if (attribute.isCollection()) {
+            throw new IllegalArgumentException("Cannot filter by collection attribute: " + filter.getAttribute());
+        }
+        if (filter.getPredicate() == QueryPredicate.ID && !attribute.isAssociation()) {
+            throw new IllegalArgumentException("Attribute is not an association: " + filter.getAttribute());
+        }
+        if (filter.getPredicate() != QueryPredicate.ID && attribute.isAssociation()) {
+            throw new IllegalArgumentException("Cannot filter by association attribute: " + filter.getAttribute());
+        }
+        filter.withAttributeType(getAttributeType(filter)).getParameterValues();
+    }
+
+    /**
+     * Checks whether the order provided applies to a sortable attribute of this entity.
+     *
+     * @throws IllegalArgumentException with the reason if the order is invalid
+     */
+    public void validate(SortOrder order) throws IllegalArgumentException {
+        AttributeMetadata attribute = attributes.get(order.getAttribute());
+        if (attribute == null) {
+            throw new IllegalArgumentException("Unknown attribute: " + order.getAttribute());
+        }
+        if (!attribute.isSortable()) {
+            throw new IllegalArgumentException("Attribute is not sortable: " + order.getAttribute());
+        }
+    }
+
+    /**
+     * Checks whether the field provided is a basic attribute of this entity, i.e. whether it can be selected by a projection.
+     *
+     * @throws IllegalArgumentException with the reason if the field is invalid
+     */
+    public void validateField(String field) throws IllegalArgumentException {
+        AttributeMetadata attribute = attributes.get(field);
+        if (attribute == null) {
+            throw new IllegalArgumentException("Unknown attribute: " + field);
+        }
+        if (attribute.isAssociation() || attribute.isCollection()) {
+            throw new IllegalArgumentException("Attribute is not a basic attribute: " + field);
+        }
+    }
+
+    /**
+     * Checks whether the field provided can be updated on its own, i.e. whether it is a basic attribute of this entity
+     * other than its id and version attribute.
+     *
+     * @throws IllegalArgumentException with the reason if the field is invalid
+     */
+    public void validateUpdatableField(String field) throws IllegalArgumentException {
+        validateField(field);
+        if ("id".equals(field) || (versionAttribute != null && versionAttribute.getName().equals(field))) {
+            throw new IllegalArgumentException("Attribute cannot be updated: " + field);
+        }
+    }
+
+    private static EntityMetadata resolve(Class<?> modelClass, Metamodel metamodel) {
+        EntityType<?> entityType;
+        try {
+            entityType = metamodel.entity(modelClass);
+        } catch (IllegalArgumentException ex) {
+            return resolve(modelClass);
+        }
+        Table table = modelClass.getAnnotation(Table.class);
+        Map<String, AttributeMetadata> attributes = new LinkedHashMap<>();
+        String versionAttribute = null;
+        for (Attribute<?, ?> attribute : entityType.getAttributes()) {
+            if (attribute == null || attribute.getName() == null) {
+                continue;
+            }
+            boolean association = attribute.isAssociation() && !attribute.isCollection();
+            Class<?> idType = null;
+            if (association) {
+                try {
+                    idType = metamodel.entity(attribute.getJavaType()).getAttribute("id").getJavaType();
+                } catch (IllegalArgumentException ex) {
+                    // no "id" attribute
+                }
+            }
+            Member member = attribute.getJavaMember();
+            AnnotatedElement element = member instanceof AnnotatedElement ? (AnnotatedElement) member : null;
+            if ((attribute instanceof SingularAttribute && ((SingularAttribute<?, ?>) attribute).isVersion())
+                    || (element != null && element.isAnnotationPresent(Version.class))) {
+                versionAttribute = attribute.getName();
+            }
+            attributes.put(attribute.getName(), new AttributeMetadata(attribute.getName(), attribute.getJavaType(),
+                    association, attribute.isCollection(), idType, isIndexed(attribute.getName(), element, table), member));
+        }
+        return new EntityMetadata(modelClass, attributes, versionAttribute);
+    }
+
+    private static EntityMetadata resolve(Class<?> modelClass) {
+        Table table = modelClass.getAnnotation(Table.class);
+        Map<String, AttributeMetadata> attributes = new LinkedHashMap<>();
+        String versionAttribute = null;
+        for (Class<?> clazz = modelClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+                        || field.isAnnotationPresent(Transient.class) || attributes.containsKey(field.getName())) {
+                    continue;
+                }
+                boolean collection = Collection.class.isAssignableFrom(field.getType()) || Map.class.isAssignableFrom(field.getType())
+                        || field.isAnnotationPresent(OneToMany.class) || field.isAnnotationPresent(ManyToMany.class);
+                boolean association = !collection && (field.getType().isAnnotationPresent(Entity.class)
+                        || field.isAnnotationPresent(ManyToOne.class) || field.isAnnotationPresent(OneToOne.class));
+                Class<?> idType = null;
+                if (association) {
+                    Field id = findField(field.getType(), "id");
+                    idType = id != null ? id.getType() : null;
+                }
+                if (field.isAnnotationPresent(Version.class)) {
+                    versionAttribute = field.getName();
+                }
+                attributes.put(field.getName(), new AttributeMetadata(field.getName(), field.getType(),
+                        association, collection, idType, isIndexed(field.getName(), field, table), field));
+            }
+        }
+        return new EntityMetadata(modelClass, attributes, versionAttribute);
+    }
+
+    private static Field findField(Class<?> clazz, String name) {
+        for (; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            try {
+                return clazz.getDeclaredField(name);
+            } catch (NoSuchFieldException ex) {
+                // try superclass
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIndexed(String name, AnnotatedElement element, Table table) {
+        String columnName = name;
+        if (element != null) {
+            if (element.isAnnotationPresent(Id.class)) {
+                return true;
+            }
+            Column column = element.getAnnotation(Column.class);
+            if (column != null) {
+                if (column.unique()) {
+                    return true;
+                }
+                if (!column.name().isEmpty()) {
+                    columnName = column.name();
+                }
+            }
+        }
+        if (table != null) {
+            for (Index index : table.indexes()) {
+                // only the leading column of an index is usable on its own
+                String leadingColumn = index.columnList().split(",")[0].trim().split("\\s+")[0];
+                if (leadingColumn.equalsIgnoreCase(columnName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The metadata of a single attribute of an entity.
+     */
+    public static class AttributeMetadata {
+        private final String name;
+        private final Class<?> javaType;
+        private final boolean association;
+        private final boolean collection;
+        private final Class<?> idType;
+        private final boolean indexed;
+        private final Member member;
+
+        private AttributeMetadata(String name, Class<?> javaType, boolean association, boolean collection, Class<?> idType, boolean indexed, Member member) {
+            this.name = name;
+            this.javaType = javaType;
+            this.association = association;
+            this.collection = collection;
+            this.idType = idType;
+            this.indexed = indexed;
+            this.member = member;
+            if (member instanceof AccessibleObject) {
+                ((AccessibleObject) member).setAccessible(true);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<?> getJavaType() {
+            return javaType;
+        }
+
+        /**
+         * Returns whether this attribute references a single other entity.
+         */
+        public boolean isAssociation() {
+            return association;
+        }
+
+        /**
+         * Returns whether this attribute is a collection (of basic values or entities).
+         */
+        public boolean isCollection() {
+            return collection;
+        }
+
+        /**
+         * Returns the type of the id of the referenced entity if this is an association; otherwise, <code>null</code>.
+         */
+        public Class<?> getIdType() {
+            return idType;
+        }
+
+        /**
+         * Returns whether the column of this attribute is known to be indexed, i.e. it is the id,
+         * is unique or is the leading column of an index declared by <code>&#064;Table#indexes()</code>.
+         */
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        /**
+         * Returns whether the entities can be ordered by this attribute, i.e. it is a single comparable value.
+         */
+        public boolean isSortable() {
+            return !association && !collection && javaType != null
+                    && (javaType.isPrimitive() || Comparable.class.isAssignableFrom(javaType));
+        }
+
+        /**
+         * Returns the value of this attribute of the entity provided, as read from its field or getter.
+         *
+         * @throws IllegalStateException if the value cannot be read
+         */
+        public Object getValue(Object entity) throws IllegalStateException {
+            try {
+                if (member instanceof Field) {
+                    return ((Field) member).get(entity);
+                }
+                if (member instanceof Method) {
+                    return ((Method) member).invoke(entity);
+                }
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                throw new IllegalStateException("Cannot read attribute " + name + " of " + entity, ex);
+            }
+            throw new IllegalStateException("Cannot read attribute " + name + " of " + entity);
+        }
+
+        /**
+         * Sets the value of this attribute of the entity provided by its field or setter.
+         *
+         * @throws IllegalStateException if the value cannot be set
+         */
+        public void setValue(Object entity, Object value) throws IllegalStateException {
+            try {
+                if (member instanceof Field) {
+                    ((Field) member).set(entity, value);
+                    return;
+                }
+                if (member instanceof Method) {
+                    String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+                    member.getDeclaringClass().getMethod(setter, ((Method) member).getReturnType()).invoke(entity, value);
+                    return;
+                }
+            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException ex) {
+                throw new IllegalStateException("Cannot set attribute " + name + " of " + entity, ex);
+            }
+            throw new IllegalStateException("Cannot set attribute " + name + " of " + entity);
+        }
+    }
+
+    private static class RegistryEntry {
+        // weakly referenced in order not to keep the metamodel of an undeployed application from being collected
+        private final WeakReference<Metamodel> metamodel;
+        private final ConcurrentMap<Class<?>, EntityMetadata> metadata;
+
+        public RegistryEntry(Metamodel metamodel, ConcurrentMap<Class<?>, EntityMetadata> metadata) {
+            this.metamodel = new WeakReference<>(metamodel);
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ch.codebulb.crudlet.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A filter on an entity attribute as parsed from a query parameter: the attribute, the {@link QueryPredicate}
+ * and the value to compare the attribute to.<p/>
+ * 
+ * Filters on the same attributes with the same predicates share the same "shape", regardless of their values,
+ * and can thus be executed by the same parameterized query.
+ */
+public class QueryFilter {
+    /** The prefix of a filter value which is compared for equality as is, even if it starts with the sign of a predicate */
+    public static final String ESCAPE = "\\";
+    
+    private final String attribute;
+    private final QueryPredicate predicate;
+    private final String value;
+    private final Class<?> valueType;
+
+    private QueryFilter(String attribute, QueryPredicate predicate, String value) {
+        this(attribute, predicate, value, predicate.getValueType());
+    }
+
+    private QueryFilter(String attribute, QueryPredicate predicate, String value, Class<?> valueType) {
+        this.attribute = attribute;
+        this.predicate = predicate;
+        this.value = value;
+        this.valueType = valueType;
+    }
+    
+    /**
+     * Parses the filter for the query parameter attribute and value provided.
+     * The predicate is chosen as documented in {@link QueryPredicate#createPredicate(javax.persistence.criteria.CriteriaBuilder, javax.persistence.criteria.Root, String, String)}.
+     * A value starting with {@link #ESCAPE} is compared as is without it, e.g. <code>\(draft)</code> equals <code>(draft)</code>.
+     */
+    public static QueryFilter parse(String attribute, String value) {
+        if (value.startsWith(ESCAPE)) {
+            value = value.substring(ESCAPE.length());
+        }
+        else {
+            if (value.length() >= 2 && value.startsWith(QueryPredicate.IN.getSign()) && value.endsWith(")")) {
+                return new QueryFilter(attribute, QueryPredicate.IN, value.substring(1, value.length() - 1));
+            }
+            if (value.length() >= 2 && value.startsWith(QueryPredicate.BETWEEN.getSign()) && value.endsWith("]")) {
+                return new QueryFilter(attribute, QueryPredicate.BETWEEN, value.substring(1, value.length() - 1));
+            }
+            if (value.startsWith(QueryPredicate.LE.getSign())) {
+                return new QueryFilter(attribute, QueryPredicate.LE, value.substring(1));
+            }
+            if (value.startsWith(QueryPredicate.GE.getSign())) {
+                return new QueryFilter(attribute, QueryPredicate.GE, value.substring(1));
+            }
+            if (value.startsWith(QueryPredicate.LIKE.getSign())) {
+                return new QueryFilter(attribute, QueryPredicate.LIKE, value.substring(1));
+            }
+        }
+        if (attribute.endsWith(QueryPredicate.ID.getSign())) {
+            return new QueryFilter(attribute.substring(0, attribute.length() - QueryPredicate.ID.getSign().length()), QueryPredicate.ID, value);
+        }
+        return new QueryFilter(attribute, QueryPredicate.EQ, value);
+    }
+    
+    /**
+     * Parses the filters for all the query parameters provided, ordered by query parameter name.
+     * Returns an empty List if <code>predicates</code> is <code>null</code>.
+     */
+    public static List<QueryFilter> parse(Map<String, String> predicates) {
+        if (predicates == null) {
+            return Collections.emptyList();
+        }
+        List<QueryFilter> ret = new ArrayList<>(predicates.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(predicates).entrySet()) {
+            ret.add(parse(entry.getKey(), entry.getValue()));
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns a String which is equal for all Lists of filters with the same attributes and predicates in the same order.
+     */
+    public static String getShape(List<QueryFilter> filters) {
+        StringBuilder sb = new StringBuilder("[");
+        for (QueryFilter filter : filters) {
+            if (sb.length() > 1) {
+                sb.append(",");
+            }
+            sb.append(filter.attribute).append(":").append(filter.predicate.name());
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Returns a copy of this filter which compares the attribute, being of the type provided, with a value of the matching type
+     * (as of {@link QueryPredicate#getValueType(Class)}). For the {@link QueryPredicate#ID} predicate, provide the type of the
+     * associated entity's id.
+     * If <code>attributeType</code> is <code>null</code>, this filter is returned.
+     */
+    public QueryFilter withAttributeType(Class<?> attributeType) {
+        if (attributeType == null) {
+            return this;
+        }
+        return new QueryFilter(attribute, predicate, value, predicate.getValueType(attributeType));
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public QueryPredicate getPredicate() {
+        return predicate;
+    }
+
+    public String getValue() {
+        return value;
+    }
+    
+    /**
+     * Returns the type of the value, or of every element of a list value, respectively.
+     */
+    public Class<?> getValueType() {
+        return valueType;
+    }
+    
+    /**
+     * Returns the types of the query parameters bound to the query: one of the {@link #getValueType()} per operand
+     * or a single Collection parameter for a list value (i.e. for {@link QueryPredicate#IN}).
+     * 
+     * @throws IllegalArgumentException if the value doesn't provide the number of operands required
+     */
+    public Class<?>[] getParameterTypes() throws IllegalArgumentException {
+        if (predicate.isList()) {
+            return new Class<?>[] {Collection.class};
+        }
+        Class<?>[] ret = new Class<?>[predicate.split(value).size()];
+        Arrays.fill(ret, valueType);
+        return ret;
+    }
+    
+    /**
+     * Returns the values of the query parameters as of {@link #getParameterTypes()},
+     * converted to the {@link #getValueType()}.
+     * 
+     * @throws IllegalArgumentException if the value cannot be converted to the value type
+     */
+    public List<Object> getParameterValues() throws IllegalArgumentException {
+        List<String> operands = predicate.split(value);
+        List<Object> ret = new ArrayList<>(operands.size());
+        for (String operand : operands) {
+            ret.add(QueryValues.convert(operand, valueType));
+        }
+        if (predicate.isList()) {
+            return Collections.<Object>singletonList(ret);
+        }
+        return ret;
+    }
+}
@@ -1,6 +1,11 @@
 package ch.codebulb.crudlet.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
@@ -9,51 +14,186 @@ import javax.persistence.criteria.Root;
  */
 public enum QueryPredicate {
     /** Represents a String equals filter */
-    EQ(null) {
+    EQ(null, String.class) {
         @Override
-        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-            return criteriaBuilder.equal(root.get(attribute), value);
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            return criteriaBuilder.equal(root.get(attribute), values[0]);
         }
     },
-    /** Represents a Long less than or equals filter */
-    LE("<") {
+    /** Represents a less than or equals filter (on a Long attribute by default) */
+    LE("<", Long.class) {
         @Override
-        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-            return criteriaBuilder.le(root.get(attribute).as(Number.class), Long.parseLong(value));
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            return criteriaBuilder.lessThanOrEqualTo(root.<Comparable>get(attribute), (Expression<Comparable>) values[0]);
         }
     },
-    /** Represents a Long greater than or equals filter */
-    GE(">") {
+    /** Represents a greater than or equals filter (on a Long attribute by default) */
+    GE(">", Long.class) {
         @Override
-        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-            return criteriaBuilder.ge(root.get(attribute).as(Number.class), Long.parseLong(value));
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            return criteriaBuilder.greaterThanOrEqualTo(root.<Comparable>get(attribute), (Expression<Comparable>) values[0]);
         }
     },
     /** Represents a String SQL "LIKE" filter */
-    LIKE("~") {
+    LIKE("~", String.class) {
         @Override
-        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-            return criteriaBuilder.like(root.get(attribute).as(String.class), value);
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            Expression<?> path = root.get(attribute);
+            // only cast if required as a cast prevents index use
+            Expression<String> string = path.getJavaType() == String.class ? (Expression<String>) path : path.as(String.class);
+            return criteriaBuilder.like(string, (Expression<String>) values[0]);
+        }
+        
+        @Override
+        public Class<?> getValueType(Class<?> attributeType) {
+            return String.class;
         }
     },
     /** Represents a Foreign key equals filter */
-    ID("Id") {
+    ID("Id", Long.class) {
+        @Override
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            return criteriaBuilder.equal(root.get(attribute).get("id"), values[0]);
+        }
+    },
+    /** Represents an SQL "IN" filter on a comma-separated list of values (String by default) */
+    IN("(", String.class) {
+        @Override
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            if (values.length == 1 && values[0].getJavaType() != null && Collection.class.isAssignableFrom(values[0].getJavaType())) {
+                // a single parameter bound to the whole list
+                return root.get(attribute).in((Expression<Collection<?>>) values[0]);
+            }
+            return root.get(attribute).in(values);
+        }
+        
+        @Override
+        public List<String> split(String value) throws IllegalArgumentException {
+            List<String> ret = splitList(value);
+            if (ret.isEmpty()) {
+                throw new IllegalArgumentException("Expected at least one value, but was: (" + value + ")");
+            }
+            return ret;
+        }
+        
+        @Override
+        boolean isList() {
+            return true;
+        }
+    },
+    /** Represents an inclusive SQL "BETWEEN" filter on a comma-separated pair of values (Long by default) */
+    BETWEEN("[", Long.class) {
         @Override
-        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-            return criteriaBuilder.equal(root.get(attribute).get("id"), value);
+        protected <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values) {
+            return criteriaBuilder.between(root.<Comparable>get(attribute), (Expression<Comparable>) values[0], (Expression<Comparable>) values[1]);
+        }
+        
+        @Override
+        public List<String> split(String value) throws IllegalArgumentException {
+            List<String> ret = splitList(value);
+            if (ret.size() != 2) {
+                throw new IllegalArgumentException("Expected a lower and an upper bound, but was: [" + value + "]");
+            }
+            return ret;
         }
     };
     
+    private static final char LIST_SEPARATOR = ',';
+    private static final char ESCAPE = '\\';
+    
     private final String sign;
+    private final Class<?> valueType;
 
-    private QueryPredicate(String sign) {
+    private QueryPredicate(String sign, Class<?> valueType) {
         this.sign = sign;
+        this.valueType = valueType;
+    }
+    
+    /**
+     * Implements creation of the predicate for the attribute provided and the value expressions
+     * (literals or parameters of the {@link #getValueType()}) provided, one per operand of {@link #split(String)};
+     * for {@link #IN}, a single parameter of type Collection is supported as well.
+     */
+    protected abstract <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, Expression<?>... values);
+    
+    String getSign() {
+        return sign;
     }
     
     /**
-     * Implements creation of the predicate for the attribute and value provided.
+     * Splits the value provided (without the enclosing signs) into the operands of this predicate.
+     * 
+     * @throws IllegalArgumentException if the value doesn't provide the number of operands required
      */
-    protected abstract <T> Predicate create(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value);
+    public List<String> split(String value) throws IllegalArgumentException {
+        return Collections.singletonList(value);
+    }
+    
+    /**
+     * Returns whether the operands of this predicate form a single list value.
+     */
+    boolean isList() {
+        return false;
+    }
+    
+    /**
+     * Joins the values provided into a list value as accepted by {@link #IN}, e.g. <code>(a,b,c)</code>,
+     * escaping separators within the values.
+     */
+    public static String joinList(List<String> values) {
+        StringBuilder sb = new StringBuilder(IN.sign);
+        for (String value : values) {
+            if (sb.length() > 1) {
+                sb.append(LIST_SEPARATOR);
+            }
+            for (char c : value.toCharArray()) {
+                if (c == LIST_SEPARATOR || c == ESCAPE) {
+                    sb.append(ESCAPE);
+                }
+                sb.append(c);
+            }
+        }
+        return sb.append(")").toString();
+    }
+    
+    private static List<String> splitList(String value) {
+        List<String> ret = new ArrayList<>();
+        if (value.isEmpty()) {
+            return ret;
+        }
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ESCAPE && i + 1 < value.length()) {
+                current.append(value.charAt(++i));
+            }
+            else if (c == LIST_SEPARATOR) {
+                ret.add(current.toString());
+                current.setLength(0);
+            }
+            else {
+                current.append(c);
+            }
+        }
+        ret.add(current.toString());
+        return ret;
+    }
+    
+    /**
+     * Returns the type of the value this predicate compares the attribute to if the type of the attribute is unknown.
+     */
+    public Class<?> getValueType() {
+        return valueType;
+    }
+    
+    /**
+     * Returns the type of the value this predicate compares an attribute of the type provided to
+     * (for {@link #ID}, the type of the id of the associated entity).
+     * If <code>attributeType</code> is <code>null</code>, returns the default {@link #getValueType()}.
+     */
+    public Class<?> getValueType(Class<?> attributeType) {
+        return attributeType != null ? QueryValues.wrap(attributeType) : valueType;
+    }
     
     /**
      * Creates a predicate for the attribute and value provided. The predicate is chosen by using a special character in either
@@ -64,23 +204,22 @@ public enum QueryPredicate {
      * <li><code>value</code> starts with <code>&gt;</code>: {@link #GE}</li>
      * <li><code>value</code> starts with <code>~</code>: {@link #LIKE}</li>
      * <li><code>attribute</code> ends with <code>Id</code>: {@link #ID}</li>
+     * <li><code>value</code> is enclosed in <code>(</code> and <code>)</code>: {@link #IN}</li>
+     * <li><code>value</code> is enclosed in <code>[</code> and <code>]</code>: {@link #BETWEEN}</li>
      * </ul>
      * 
-     * Otherwise, {@link #EQ} is chosen as the default.
+     * Otherwise, {@link #EQ} is chosen as the default. A <code>value</code> starting with <code>\</code> is not checked for
+     * special characters, but compared as is without the <code>\</code> (see {@link QueryFilter#ESCAPE}).
+     * 
+     * @see QueryFilter#parse(String, String)
      */
     public static <T> Predicate createPredicate(CriteriaBuilder criteriaBuilder, Root<T> root, String attribute, String value) {
-        if (value.startsWith(LE.sign)) {
-            return LE.create(criteriaBuilder, root, attribute, value.substring(1));
-        }
-        if (value.startsWith(GE.sign)) {
-            return GE.create(criteriaBuilder, root, attribute, value.substring(1));
-        }
-        if (value.startsWith(LIKE.sign)) {
-            return LIKE.create(criteriaBuilder, root, attribute, value.substring(1));
-        }
-        if (attribute.endsWith(ID.sign)) {
-            return ID.create(criteriaBuilder, root, attribute.substring(0, attribute.length() - ID.sign.length()), value);
+        QueryFilter filter = QueryFilter.parse(attribute, value);
+        List<Object> values = filter.getPredicate().isList() ? (List<Object>) filter.getParameterValues().get(0) : filter.getParameterValues();
+        Expression<?>[] literals = new Expression<?>[values.size()];
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = criteriaBuilder.literal(values.get(i));
         }
-        return EQ.create(criteriaBuilder, root, attribute, value);
+        return filter.getPredicate().create(criteriaBuilder, root, filter.getAttribute(), literals);
     }
 }
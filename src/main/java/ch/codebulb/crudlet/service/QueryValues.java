@@ -0,0 +1,135 @@
+package ch.codebulb.crudlet.service;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A collection of helper utility methods for converting query parameter values to the type of the entity attribute
+ * they are compared to, so that the database compares values of the column's type and is able to use its indexes.
+ */
+public class QueryValues {
+    // XXX accepts "Z" and "+01:00", XX accepts "Z" and "+0100"
+    private static final String[] DATE_PATTERNS = {"yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ss.SSSXX",
+        "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ssXX", "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"};
+
+    /**
+     * Converts the value provided to the type provided. Supported types are String, all primitive number types and
+     * their wrappers, BigDecimal, BigInteger, Boolean, Character, enums and {@link Date} (as milliseconds since the epoch
+     * or in ISO-8601 format, e.g. <code>2020-01-01T00:00:00.000Z</code>, <code>2020-01-01T00:00:00+01:00</code> or <code>2020-01-01</code>)
+     * including its <code>java.sql</code> subclasses. Dates without a time zone are in the server's default time zone.
+     * Values for any other type are returned unconverted.
+     *
+     * @throws IllegalArgumentException if the value cannot be converted to the type
+     */
+    public static Object convert(String value, Class<?> type) throws IllegalArgumentException {
+        type = wrap(type);
+        if (type == String.class || type == Object.class) {
+            return value;
+        }
+        if (type == Long.class) {
+            return Long.valueOf(value);
+        }
+        if (type == Integer.class) {
+            return Integer.valueOf(value);
+        }
+        if (type == Short.class) {
+            return Short.valueOf(value);
+        }
+        if (type == Byte.class) {
+            return Byte.valueOf(value);
+        }
+        if (type == Double.class) {
+            return Double.valueOf(value);
+        }
+        if (type == Float.class) {
+            return Float.valueOf(value);
+        }
+        if (type == BigDecimal.class) {
+            return new BigDecimal(value);
+        }
+        if (type == BigInteger.class) {
+            return new BigInteger(value);
+        }
+        if (type == Boolean.class) {
+            if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalArgumentException("Expected true or false, but was: " + value);
+            }
+            return Boolean.valueOf(value);
+        }
+        if (type == Character.class) {
+            if (value.length() != 1) {
+                throw new IllegalArgumentException("Expected a single character, but was: " + value);
+            }
+            return value.charAt(0);
+        }
+        if (type.isEnum()) {
+            return Enum.valueOf((Class<Enum>) type, value);
+        }
+        if (type == java.sql.Date.class) {
+            return new java.sql.Date(parseDate(value).getTime());
+        }
+        if (type == java.sql.Time.class) {
+            return new java.sql.Time(parseDate(value).getTime());
+        }
+        if (type == java.sql.Timestamp.class) {
+            return new java.sql.Timestamp(parseDate(value).getTime());
+        }
+        if (type == Date.class) {
+            return parseDate(value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the wrapper type for a primitive type, or the type provided otherwise.
+     */
+    public static Class<?> wrap(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (type == long.class) {
+            return Long.class;
+        }
+        if (type == int.class) {
+            return Integer.class;
+        }
+        if (type == short.class) {
+            return Short.class;
+        }
+        if (type == byte.class) {
+            return Byte.class;
+        }
+        if (type == double.class) {
+            return Double.class;
+        }
+        if (type == float.class) {
+            return Float.class;
+        }
+        if (type == boolean.class) {
+            return Boolean.class;
+        }
+        if (type == char.class) {
+            return Character.class;
+        }
+        return type;
+    }
+
+    private static Date parseDate(String value) throws IllegalArgumentException {
+        if (value.matches("-?\\d+")) {
+            return new Date(Long.parseLong(value));
+        }
+        for (String pattern : DATE_PATTERNS) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date ret = format.parse(value, position);
+            if (ret != null && position.getIndex() == value.length()) {
+                return ret;
+            }
+        }
+        throw new IllegalArgumentException("Expected a date in ISO-8601 format, but was: " + value);
+    }
+}
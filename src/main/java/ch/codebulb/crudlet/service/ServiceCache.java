@@ -0,0 +1,173 @@
+package ch.codebulb.crudlet.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe in-process cache with least-recently-used eviction and an optional time-to-live,
+ * which counts its hits, misses and evictions.<p/>
+ *
+ * As the service instances themselves are usually short-lived (e.g. <code>&#064;Stateless</code> beans),
+ * a cache instance should be held e.g. in a static field of the service implementation.
+ */
+public class ServiceCache<K, V> {
+    private final int maxSize;
+    private final long timeToLiveMillis;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    // incremented by every invalidation
+    private long generation;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a cache which holds at most <code>maxSize</code> values, each for at most <code>timeToLiveMillis</code>
+     * milliseconds. A <code>timeToLiveMillis</code> value &lt;= <code>0</code> means no expiry.
+     */
+    public ServiceCache(final int maxSize, long timeToLiveMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive, but was: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > maxSize) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the value cached for the key provided, or <code>null</code> if no value is cached or it has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && isExpired(entry)) {
+            entries.remove(key);
+            evictionCount++;
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * Caches the value provided for the key provided, evicting the least recently used value if the cache is full.
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, currentTimeMillis()));
+    }
+
+    /**
+     * Caches the value provided for the key provided, as by {@link #put(Object, Object)}, unless the cache has been invalidated
+     * since the {@link #getGeneration()} provided was read, and returns whether the value has been cached.<p/>
+     * 
+     * Read the generation before loading the value, so that a value loaded concurrently to a write is not cached
+     * after the write has invalidated the cache, where it would stay stale until it expires.
+     */
+    public synchronized boolean put(K key, V value, long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    /**
+     * Removes the value cached for the key provided, if any.
+     */
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+        generation++;
+    }
+
+    /**
+     * Removes all the values cached.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        generation++;
+    }
+
+    /**
+     * Returns the generation of the cache, which every invalidation increments.
+     * See {@link #put(Object, Object, long)}.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the number of values currently cached, including expired values not yet evicted.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all the expired values.
+     */
+    public synchronized void evictExpired() {
+        for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (isExpired(it.next())) {
+                it.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of values removed because the cache was full or they had expired.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the current time in milliseconds. Override this method to use a custom clock.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return timeToLiveMillis > 0 && currentTimeMillis() - entry.created >= timeToLiveMillis;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created;
+
+        public Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
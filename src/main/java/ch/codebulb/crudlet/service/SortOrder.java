@@ -0,0 +1,71 @@
+package ch.codebulb.crudlet.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An ascending or descending order by an entity attribute as parsed from a query parameter.
+ */
+public class SortOrder {
+    private static final String SEPARATOR = ",";
+    private static final String DESCENDING_SIGN = "-";
+    private static final String ASCENDING_SIGN = "+";
+
+    private final String attribute;
+    private final boolean ascending;
+
+    public SortOrder(String attribute, boolean ascending) {
+        this.attribute = attribute;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Parses the orders from a comma-separated list of attributes, each optionally prefixed with
+     * <code>-</code> for descending or <code>+</code> for ascending order (the default), e.g. <code>name,-city</code>.
+     *
+     * @throws IllegalArgumentException if an attribute is empty or given multiple times
+     */
+    public static List<SortOrder> parse(String value) throws IllegalArgumentException {
+        List<SortOrder> ret = new ArrayList<>();
+        Set<String> attributes = new HashSet<>();
+        for (String element : value.split(SEPARATOR, -1)) {
+            element = element.trim();
+            boolean ascending = !element.startsWith(DESCENDING_SIGN);
+            if (element.startsWith(DESCENDING_SIGN) || element.startsWith(ASCENDING_SIGN)) {
+                element = element.substring(1);
+            }
+            if (element.isEmpty()) {
+                throw new IllegalArgumentException("Expected a comma-separated list of attributes, but was: " + value);
+            }
+            if (!attributes.add(element)) {
+                throw new IllegalArgumentException("Attribute given multiple times: " + element);
+            }
+            ret.add(new SortOrder(element, ascending));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a String which is equal for all equal Lists of orders.
+     */
+    public static String getShape(List<SortOrder> orders) {
+        StringBuilder sb = new StringBuilder("(");
+        for (SortOrder order : orders) {
+            if (sb.length() > 1) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(order.ascending ? "" : DESCENDING_SIGN).append(order.attribute);
+        }
+        return sb.append(")").toString();
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+}
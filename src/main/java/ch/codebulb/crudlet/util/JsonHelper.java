@@ -1,7 +1,14 @@
 package ch.codebulb.crudlet.util;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 
@@ -27,10 +34,115 @@ public class JsonHelper {
             else if (value instanceof Map) {
                 root.add(key.toString(), build((Map) value));
             }
+            else if (value instanceof List) {
+                root.add(key.toString(), build((List) value));
+            }
             else {
                 root.add(key.toString(), value.toString());
             }
         }
         return root.build();
     }
+    
+    /**
+     * Builds a {@link JsonArray} from a List of arbitrarily nested Maps.
+     * All the leaves of the resulting json array are of type String.
+     *
+     * @param list the list
+     * @return the json array
+     */
+    public static JsonArray build(List list) {
+        JsonArrayBuilder root = Json.createArrayBuilder();
+        for (Object value : list) {
+            if (value == null) {
+                root.addNull();
+            }
+            else if (value instanceof Map) {
+                root.add(build((Map) value));
+            }
+            else if (value instanceof List) {
+                root.add(build((List) value));
+            }
+            else {
+                root.add(value.toString());
+            }
+        }
+        return root.build();
+    }
+    
+    /**
+     * Builds a {@link JsonObject} from an arbitrarily nested Map of values.
+     * In contrast to {@link #build(Map)}, numbers and booleans are kept as JSON numbers and booleans,
+     * and dates are written as milliseconds since the epoch; any other value is written as a String.
+     *
+     * @param map the map
+     * @return the json object
+     */
+    public static JsonObject buildTyped(Map<?, ?> map) {
+        JsonObjectBuilder root = Json.createObjectBuilder();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            String key = entry.getKey().toString();
+            Object value = entry.getValue();
+            if (value == null) {
+                root.addNull(key);
+            }
+            else if (value instanceof Map) {
+                root.add(key, buildTyped((Map<?, ?>) value));
+            }
+            else if (value instanceof List) {
+                root.add(key, buildTyped((List<?>) value));
+            }
+            else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                root.add(key, ((Number) value).longValue());
+            }
+            else if (value instanceof BigInteger) {
+                root.add(key, (BigInteger) value);
+            }
+            else if (value instanceof BigDecimal) {
+                root.add(key, (BigDecimal) value);
+            }
+            else if (value instanceof Number) {
+                root.add(key, ((Number) value).doubleValue());
+            }
+            else if (value instanceof Boolean) {
+                root.add(key, (Boolean) value);
+            }
+            else if (value instanceof Date) {
+                root.add(key, ((Date) value).getTime());
+            }
+            else if (value instanceof Enum) {
+                root.add(key, ((Enum) value).name());
+            }
+            else {
+                root.add(key, value.toString());
+            }
+        }
+        return root.build();
+    }
+    
+    /**
+     * Builds a {@link JsonArray} from a List of arbitrarily nested Maps of values as of {@link #buildTyped(Map)}.
+     *
+     * @param list the list
+     * @return the json array
+     */
+    public static JsonArray buildTyped(List<?> list) {
+        JsonArrayBuilder root = Json.createArrayBuilder();
+        for (Object value : list) {
+            if (value == null) {
+                root.addNull();
+            }
+            else if (value instanceof Map) {
+                root.add(buildTyped((Map<?, ?>) value));
+            }
+            else if (value instanceof List) {
+                root.add(buildTyped((List<?>) value));
+            }
+            else {
+                // JSON-P 1.0 has no factory for single values: convert it as the only entry of an object
+                root.add(buildTyped(Collections.singletonMap("value", value)).get("value"));
+            }
+        }
+        return root.build();
+    }
 }
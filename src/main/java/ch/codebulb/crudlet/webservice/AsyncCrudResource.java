@@ -0,0 +1,524 @@
+package ch.codebulb.crudlet.webservice;
+
+import ch.codebulb.crudlet.config.Options;
+import ch.codebulb.crudlet.model.CrudEntity;
+import ch.codebulb.crudlet.model.CrudIdentifiable;
+import ch.codebulb.crudlet.service.CrudService;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * <p>
+ * A REST web service endpoint which realizes the same REST operations as {@link CrudResource}, but executes them
+ * asynchronously: the request is suspended and the service is called on a bounded executor, so that the threads of
+ * the HTTP container stay available to accept requests while the database is busy.
+ * </p>
+ * <p>
+ * Reads (<code>GET</code>) and writes (all other methods) are executed on separate executors, so that slow writes cannot
+ * starve reads and vice versa. If all the threads of an executor are busy and its queue of <code>Options#ASYNC_QUEUE_SIZE</code>
+ * requests is full, a request is rejected with HTTP 503 SERVICE UNAVAILABLE at once; if a request is still queued after
+ * <code>Options#ASYNC_TIMEOUT_MILLIS</code>, it is dropped and answered with HTTP 503 SERVICE UNAVAILABLE. An operation which has
+ * started is not subject to the timeout: it is always answered with its actual result, so that a client is never told that a write
+ * failed which is committed later.
+ * </p>
+ * <p>
+ * By default, the executors are shared by all <code>AsyncCrudResource</code>s and at most <code>Options#ASYNC_READ_THREADS</code>
+ * and <code>Options#ASYNC_WRITE_THREADS</code> operations execute at the same time, on the threads of the container's
+ * <code>ManagedExecutorService</code> (see <code>Options#ASYNC_MANAGED_EXECUTOR</code>), so that the operations run with the
+ * application's JNDI (<code>java:comp</code>) and transaction context. If there is no <code>ManagedExecutorService</code>, the executors
+ * create their own threads; on Java 21 or later, they execute the operations on virtual threads instead if
+ * <code>Options#ASYNC_VIRTUAL_THREADS</code> is set, so that operations waiting for the database do not occupy OS threads.
+ * On threads which are not managed by the container, <code>java:comp</code> JNDI lookups, e.g. of the
+ * {@link CrudService#getTransactionSynchronizationRegistry()}, fail, and so may the <code>&#064;Transactional</code> interceptor
+ * of the {@link CrudService}, depending on the container.
+ * Override {@link #getReadExecutor()} and {@link #getWriteExecutor()} to use other executors.
+ * </p>
+ * <p>
+ * The operations are executed by a {@link CrudResource} created for every request by {@link #createResource()},
+ * which works on copies of the request's <code>&#064;Context</code> objects as the originals are bound to the request thread.
+ * Override {@link #createResource()} to customize the operations by the <code>CrudResource</code> extension points.
+ * As the service is called on another thread, it must not rely on the transaction or security context of the request thread;
+ * a <code>&#064;Transactional</code> {@link CrudService} starts its own transactions.
+ * As the operation may still run when the request method has returned, the service instance is called concurrently by the operations
+ * of several requests: do not pool this resource (e.g. as a <code>&#064;Stateless</code> EJB), but make it <code>&#064;ApplicationScoped</code>
+ * (or <code>&#064;RequestScoped</code>, with an <code>&#064;ApplicationScoped</code> service), and do not apply
+ * {@link ch.codebulb.crudlet.service.CrudService.FlushStrategy#EVERY_N}, which counts the operations of the service instance.
+ * </p>
+ * <p>
+ * As an example, an asynchronous REST service endpoint implementation for a
+ * <code>Customer</code> entity can extend <code>AsyncCrudResource</code> like this:</p>
+ * <pre class="brush:java">
+&#064;Path(&quot;customers&quot;)
+&#064;ApplicationScoped
+public class CustomerResource extends AsyncCrudResource&lt;Customer&gt; {
+    &#064;Inject
+    private CustomerService service;
+
+    &#064;Override
+    protected CrudService&lt;Customer&gt; getService() {
+        return service;
+    }
+}
+                </pre>
+ */
+public abstract class AsyncCrudResource<T extends CrudIdentifiable> {
+    @Context protected UriInfo uri;
+    @Context protected SecurityContext context;
+    @Context protected Providers providers;
+    @Context protected Request request;
+    @Context protected HttpHeaders headers;
+
+    private static ExecutorService readExecutor;
+    private static ExecutorService writeExecutor;
+
+    /**
+     * Returns a List of all entities, as {@link CrudResource#findAll()}.
+     */
+    @GET
+    @Path("/")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void findAll(@Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getReadExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.findAll();
+            }
+        });
+    }
+
+    /**
+     * Returns all entities as a JSON array which is written to the response, as {@link CrudResource#findAllStreamed()}.
+     * As the entities are only fetched while the response is written, this operation is not executed asynchronously.
+     */
+    @GET
+    @Path("/_stream")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response findAllStreamed() {
+        return detach().findAllStreamed();
+    }
+
+    /**
+     * Returns all entities as newline delimited JSON which is written to the response, as {@link CrudResource#export()}.
+     * As the entities are only fetched while the response is written, this operation is not executed asynchronously.
+     */
+    @GET
+    @Path("/_export")
+    @Produces(CrudResource.APPLICATION_NDJSON)
+    public Response export() {
+        return detach().export();
+    }
+
+    /**
+     * Returns the entity with the {@link CrudEntity#getId()} provided, as {@link CrudResource#findById(Long)}.
+     */
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void findById(@PathParam("id") final Long id, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getReadExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.findById(id);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of entities, as {@link CrudResource#countAll()}.
+     */
+    @GET
+    @Path("/_count")
+    public void countAll(@Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getReadExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.countAll();
+            }
+        });
+    }
+
+    /**
+     * Inserts the entity provided, as {@link CrudResource#add(CrudIdentifiable)}.
+     */
+    @POST
+    @Path("/")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public void add(final T entity, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.add(entity);
+            }
+        });
+    }
+
+    /**
+     * Updates the entity provided, as {@link CrudResource#update(Long, CrudIdentifiable)}.
+     */
+    @PUT
+    @Path("/{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public void update(@PathParam("id") final Long id, final T entity, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.update(id, entity);
+            }
+        });
+    }
+
+    /**
+     * Updates only the attributes given by the JSON merge patch provided, as {@link CrudResource#patch(Long, InputStream)}.
+     */
+    @PATCH
+    @Path("/{id}")
+    @Consumes({CrudResource.APPLICATION_MERGE_PATCH_JSON, MediaType.APPLICATION_JSON})
+    public void patch(@PathParam("id") final Long id, final InputStream body, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.patch(id, body);
+            }
+        });
+    }
+
+    /**
+     * Inserts all the entities provided as newline delimited JSON, as {@link CrudResource#importAll(InputStream)}.
+     */
+    @POST
+    @Path("/_import")
+    @Consumes(CrudResource.APPLICATION_NDJSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void importAll(final InputStream body, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return resource.importAll(body);
+            }
+        });
+    }
+
+    /**
+     * Executes all the operations provided within a single transaction, as {@link CrudResource#batch(InputStream)}.
+     */
+    @POST
+    @Path("/" + CrudResource.BATCH_PATH)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void batch(final InputStream body, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.batch(body);
+            }
+        });
+    }
+
+    /**
+     * Deletes all entities, as {@link CrudResource#deleteAll()}.
+     */
+    @DELETE
+    @Path("/")
+    public void deleteAll(@Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.deleteAll();
+            }
+        });
+    }
+
+    /**
+     * Deletes the entity with the {@link CrudEntity#getId()} provided, as {@link CrudResource#delete(Long)}.
+     */
+    @DELETE
+    @Path("/{id}")
+    public void delete(@PathParam("id") final Long id, @Suspended AsyncResponse response) {
+        final CrudResource<T> resource = detach();
+        submit(getWriteExecutor(), response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return resource.delete(id);
+            }
+        });
+    }
+
+    /**
+     * Returns the service instance. The service should be dependency-injected into this
+     * web service endpoint implementation.
+     *
+     * @return the service
+     */
+    protected abstract CrudService<T> getService();
+
+    /**
+     * Returns a new {@link CrudResource} which executes the operations of a single request, calling {@link #getService()}.
+     * Its <code>&#064;Context</code> objects are set by this resource.
+     *
+     * Extension point to add custom behavior.
+     */
+    protected CrudResource<T> createResource() {
+        return new CrudResource<T>() {
+            @Override
+            protected CrudService<T> getService() {
+                return AsyncCrudResource.this.getService();
+            }
+        };
+    }
+
+    /**
+     * Returns the executor which executes the read operations; by default, an executor shared by all
+     * <code>AsyncCrudResource</code>s which executes at most <code>Options#ASYNC_READ_THREADS</code> operations at the same time
+     * (see the class documentation).
+     *
+     * Extension point to add custom behavior.
+     */
+    protected ExecutorService getReadExecutor() {
+        synchronized (AsyncCrudResource.class) {
+            if (readExecutor == null) {
+                readExecutor = createSharedExecutor("crudlet-read", Options.ASYNC_READ_THREADS);
+            }
+            return readExecutor;
+        }
+    }
+
+    /**
+     * Returns the executor which executes the write operations; by default, an executor shared by all
+     * <code>AsyncCrudResource</code>s which executes at most <code>Options#ASYNC_WRITE_THREADS</code> operations at the same time
+     * (see the class documentation).
+     *
+     * Extension point to add custom behavior.
+     */
+    protected ExecutorService getWriteExecutor() {
+        synchronized (AsyncCrudResource.class) {
+            if (writeExecutor == null) {
+                writeExecutor = createSharedExecutor("crudlet-write", Options.ASYNC_WRITE_THREADS);
+            }
+            return writeExecutor;
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds after which a request whose operation has not started yet is dropped and answered with
+     * {@link #createUnavailableResponse()}; by default, <code>Options#ASYNC_TIMEOUT_MILLIS</code>.
+     *
+     * Extension point to add custom behavior.
+     */
+    protected long getTimeoutMillis() {
+        return Options.ASYNC_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Returns the response to a request which is rejected by the executor or has timed out while queued;
+     * by default, HTTP 503 SERVICE UNAVAILABLE.
+     *
+     * Extension point to add custom behavior.
+     */
+    protected Response createUnavailableResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+
+    /**
+     * Creates an executor with the number of threads provided which holds at most <code>queueSize</code> waiting tasks
+     * and rejects any further task with a {@link RejectedExecutionException}. Its threads are daemon threads
+     * named after the name provided, and terminate when they are idle for a minute.
+     */
+    public static ThreadPoolExecutor createExecutor(String name, int threads, int queueSize) {
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new NamedThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread named after the name provided, of which at most
+     * <code>maxConcurrency</code> execute at the same time while at most <code>queueSize</code> further tasks wait;
+     * any further task is rejected with a {@link RejectedExecutionException}. Waiting tasks do not occupy OS threads.
+     *
+     * @throws UnsupportedOperationException if the Java runtime does not support virtual threads (before Java 21)
+     */
+    public static ExecutorService createVirtualThreadExecutor(String name, int maxConcurrency, int queueSize) throws UnsupportedOperationException {
+        return new VirtualThreadExecutor(name, maxConcurrency, queueSize);
+    }
+
+    /**
+     * Returns whether the Java runtime supports virtual threads (Java 21 or later).
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VirtualThreadExecutor.isAvailable();
+    }
+
+    /**
+     * Shuts down the executors shared by all <code>AsyncCrudResource</code>s, e.g. when the application is undeployed.
+     * They are created again on their next use, from the current <code>Options</code>.
+     */
+    public static void shutdownExecutors() {
+        synchronized (AsyncCrudResource.class) {
+            if (readExecutor != null) {
+                shutdown(readExecutor);
+                readExecutor = null;
+            }
+            if (writeExecutor != null) {
+                shutdown(writeExecutor);
+                writeExecutor = null;
+            }
+        }
+    }
+
+    private static ExecutorService createSharedExecutor(String name, int threads) {
+        if (Options.ASYNC_VIRTUAL_THREADS && isVirtualThreadsAvailable()) {
+            try {
+                return createVirtualThreadExecutor(name, threads, Options.ASYNC_QUEUE_SIZE);
+            } catch (UnsupportedOperationException ex) {
+                // fall back to platform threads
+            }
+        }
+        ExecutorService managedExecutor = lookupManagedExecutor();
+        if (managedExecutor != null) {
+            return new VirtualThreadExecutor(managedExecutor, threads, Options.ASYNC_QUEUE_SIZE);
+        }
+        return createExecutor(name, threads, Options.ASYNC_QUEUE_SIZE);
+    }
+
+    /**
+     * Returns the container-managed executor named by <code>Options#ASYNC_MANAGED_EXECUTOR</code>,
+     * or <code>null</code> if there is none (e.g. outside of a container).
+     */
+    private static ExecutorService lookupManagedExecutor() {
+        if (Options.ASYNC_MANAGED_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) new InitialContext().lookup(Options.ASYNC_MANAGED_EXECUTOR);
+        } catch (NamingException | ClassCastException ex) {
+            return null;
+        }
+    }
+
+    private static void shutdown(ExecutorService executor) {
+        try {
+            executor.shutdown();
+        } catch (IllegalStateException ex) {
+            // the lifecycle of a container-managed executor is managed by the container
+        }
+    }
+
+    /**
+     * Returns a new {@link CrudResource} working on copies of this request's <code>&#064;Context</code> objects.
+     */
+    CrudResource<T> detach() {
+        CrudResource<T> ret = createResource();
+        ret.uri = RequestSnapshot.of(uri);
+        ret.context = RequestSnapshot.of(context);
+        ret.providers = providers;
+        ret.headers = RequestSnapshot.of(headers);
+        ret.request = RequestSnapshot.of(request, ret.headers);
+        return ret;
+    }
+
+    /**
+     * Executes the operation provided on the executor provided and resumes the suspended response with its result,
+     * or with {@link #createUnavailableResponse()} if the executor rejects it or it has not started within {@link #getTimeoutMillis()}.
+     * Once the operation has started, it is not interrupted by the timeout, but its result is awaited.
+     */
+    private void submit(ExecutorService executor, final AsyncResponse response, final Callable<Response> operation) {
+        final AtomicReference<Future<?>> future = new AtomicReference<>();
+        // claimed either by the operation when it starts or by the timeout handler while the operation is still queued
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final long timeout = getTimeoutMillis();
+        if (timeout > 0) {
+            response.setTimeoutHandler(new TimeoutHandler() {
+                @Override
+                public void handleTimeout(AsyncResponse asyncResponse) {
+                    if (claimed.compareAndSet(false, true)) {
+                        Future<?> task = future.get();
+                        if (task != null) {
+                            task.cancel(false);
+                        }
+                        asyncResponse.resume(createUnavailableResponse());
+                    } else {
+                        // a running write may still commit, so its actual result is awaited
+                        asyncResponse.setTimeout(timeout, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+            response.setTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        try {
+            future.set(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        response.resume(operation.call());
+                    } catch (Exception ex) {
+                        response.resume(ex);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException ex) {
+            response.resume(createUnavailableResponse());
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread ret = new Thread(runnable, name + "-" + count.incrementAndGet());
+            ret.setDaemon(true);
+            return ret;
+        }
+    }
+}
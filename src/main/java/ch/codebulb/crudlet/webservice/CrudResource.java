@@ -6,12 +6,48 @@ import ch.codebulb.crudlet.model.CrudEntity;
 import ch.codebulb.crudlet.model.CrudIdentifiable;
 import ch.codebulb.crudlet.model.errors.IllegalRequestExceptions;
 import ch.codebulb.crudlet.model.errors.RestErrorBuilder;
+import ch.codebulb.crudlet.service.BatchOperation;
 import ch.codebulb.crudlet.service.CrudService;
+import ch.codebulb.crudlet.service.EntityMetadata;
+import ch.codebulb.crudlet.service.QueryFilter;
+import ch.codebulb.crudlet.service.QueryPredicate;
+import ch.codebulb.crudlet.service.QueryValues;
+import ch.codebulb.crudlet.service.SortOrder;
+import ch.codebulb.crudlet.util.JsonHelper;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.persistence.EntityExistsException;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -20,14 +56,24 @@ import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Providers;
 
 /**
  * <p>
@@ -43,25 +89,45 @@ import javax.ws.rs.core.UriInfo;
  * <li>Searches for all entities of the given type; or searches for all entities of the given type which match all the given query parameters if the global <code>Options#ALLOW_FILTERS</code> flag is set to <code>true</code>. Allowed filters are:
  * 
  * <ul>
- * <li><code>=</code> String equals, e.g. GET <code>GET /contextPath/customers?city=Los%20Angeles</code></li>
- * <li><code>=&gt;</code> Long greater than or equals, e.g. GET <code>GET /contextPath/customers/1/payments?amount=&gt;100</code></li>
- * <li><code>=&lt;</code> Long less than or equals, e.g. GET <code>GET /contextPath/customers/1/payments?amount=&lt;100</code></li>
+ * <li><code>=</code> equals, e.g. GET <code>GET /contextPath/customers?city=Los%20Angeles</code></li>
+ * <li><code>=&gt;</code> greater than or equals, e.g. GET <code>GET /contextPath/customers/1/payments?amount=&gt;100</code></li>
+ * <li><code>=&lt;</code> less than or equals, e.g. GET <code>GET /contextPath/customers/1/payments?amount=&lt;100</code></li>
  * <li><code>=~</code> String SQL "LIKE", e.g. GET <code>GET /contextPath/customers?address=~%Street</code></li>
+ * <li><code>=(...)</code> SQL "IN", e.g. <code>GET /contextPath/customers?city=(Los%20Angeles,New%20York)</code>, or equivalently by repeating the query parameter</li>
+ * <li><code>=[...]</code> SQL "BETWEEN" (inclusive), e.g. <code>GET /contextPath/customers/1/payments?amount=[100,200]</code></li>
  * <li><code>Id=</code> Foreign key equals, e.g. GET <code>GET /contextPath/customers/1/payments?customerId=1</code> (this is rather used programmatically when implementing <code>CrudService</code> class to preconfigure nested service endpoints globally than by actual API clients)</li>
  * </ul></li>
- * <li>returns HTTP 200 OK with list of entities</li>
+ * <li>Optionally, returns only the page of entities requested by the <code>_limit</code> (page size) and <code>_offset</code> (index of the first entity) query parameters, e.g. <code>GET /contextPath/customers?_limit=20&amp;_offset=40</code>. The page size is limited to the global <code>Options#MAX_PAGE_SIZE</code> value, if set.</li>
+ * <li>Alternatively, returns only the page of entities with an id greater than the <code>_after</code> query parameter (keyset pagination), e.g. <code>GET /contextPath/customers?_after=120&amp;_limit=20</code>. The cost of such a query does not depend on the position of the page. If the page is full, the <code>X-Next-Cursor</code> header holds the <code>_after</code> value of the next page.</li>
+ * <li>Optionally, returns the entities ordered by the comma-separated attributes of the <code>_sort</code> query parameter, each prefixed with <code>-</code> for descending order, e.g. <code>GET /contextPath/customers?_sort=city,-name&amp;_limit=20</code>. The entities are sorted by the database, and additionally by id to keep pages consistent. Cannot be combined with <code>_after</code>.</li>
+ * <li>Optionally, returns only the id and the comma-separated fields of the <code>_fields</code> query parameter of every entity, e.g. <code>GET /contextPath/customers?_fields=name,city</code>. Only the columns of these fields are selected from the database. Cannot be combined with <code>_after</code>.</li>
+ * <li>Returns a strong <code>ETag</code> header computed from the ids and <code>&#064;Version</code> attributes of the entities, or from the response content if the entity has no version attribute and there are at most <code>Options#MAX_CONTENT_ETAG_ENTITIES</code> entities (and the <code>Cache-Control</code> header returned by {@link #getCacheControl()}, if any), unless the global <code>Options#RETURN_ETAGS</code> flag is set to <code>false</code>. If the <code>If-None-Match</code> request header matches it, returns HTTP 304 NOT MODIFIED without a body instead.</li>
+ * <li>returns HTTP 200 OK with list of entities; for a page, the total number of entities is returned in the <code>X-Total-Count</code> header and links to other pages in the <code>Link</code> header unless the global <code>Options#RETURN_PAGING_HEADERS</code> flag is set to <code>false</code>; or HTTP 400 BAD REQUEST if <code>_limit</code>, <code>_offset</code> or <code>_after</code> is not a non-negative integer or if both <code>_offset</code> and <code>_after</code> are given; or HTTP 400 BAD REQUEST if a filter does not apply to an attribute of the entity or its value does not match the attribute's type; or HTTP 400 BAD REQUEST if <code>_sort</code> does not consist of sortable attributes of the entity (or its first attribute is not indexed, if the global <code>Options#ALLOW_UNINDEXED_SORT</code> flag is set to <code>false</code>) or is combined with <code>_after</code>; or HTTP 400 BAD REQUEST if <code>_fields</code> does not consist of basic attributes of the entity or is combined with <code>_after</code>.</li>
+ * </ul></li>
+ * <li><code>GET /contextPath/model/_stream</code>: <code>service#iterateBy()</code>
+ * 
+ * <ul>
+ * <li>Searches for all entities of the given type, optionally with an id greater than the <code>_after</code> query parameter, which match all the given query parameters if the global <code>Options#ALLOW_FILTERS</code> flag is set to <code>true</code>. Allowed filters are the same as for <code>GET /contextPath/model</code>.</li>
+ * <li>returns HTTP 200 OK with list of entities which is written to the response while the entities are fetched in chunks of <code>Options#STREAM_CHUNK_SIZE</code>, thus keeping memory consumption constant; or HTTP 400 BAD REQUEST if <code>_after</code> is not a non-negative integer or a filter is illegal.</li>
+ * </ul></li>
+ * <li><code>GET /contextPath/model/_export</code>: <code>service#iterateBy()</code>
+ * 
+ * <ul>
+ * <li>Same as <code>GET /contextPath/model/_stream</code>, but returns the entities as newline delimited JSON (<code>application/x-ndjson</code>), i.e. one entity per line. An interrupted export can be resumed by passing the id of the last entity received as the <code>_after</code> query parameter.</li>
  * </ul></li>
  * <li><code>GET /contextPath/model/_count</code>: <code>service#countAll()</code>
  * 
  * <ul>
  * <li>Counts all entities of the given type; or counts all entities of the given type which match all the given query parameters if the global <code>Options#ALLOW_FILTERS</code> flag is set to <code>true</code>. Allowed filters are the same as for <code>GET /contextPath/model</code>.</li>
- * <li>returns HTTP 200 OK with the calculation output; or HTTP 403 FORBIDDEN if the global <code>Options#ALLOW_COUNT</code> flag is set to <code>false</code>.</li>
+ * <li>returns HTTP 200 OK with the calculation output; or HTTP 403 FORBIDDEN if the global <code>Options#ALLOW_COUNT</code> flag is set to <code>false</code>; or HTTP 400 BAD REQUEST if a filter is illegal.</li>
  * </ul></li>
  * <li><code>GET /contextPath/model/:id</code>: <code>service#findById(id)</code>
  * 
  * <ul>
  * <li>Searches for the entity of the given type with the given id.</li>
- * <li>returns HTTP 200 OK with entity if found; or HTTP 404 NOT FOUND if entity is not found.</li>
+ * <li>Optionally, returns only the id and the comma-separated fields of the <code>_fields</code> query parameter of the entity, e.g. <code>GET /contextPath/customers/1?_fields=name,city</code>.</li>
+ * <li>Returns a strong <code>ETag</code> header as for <code>GET /contextPath/model</code>, and HTTP 304 NOT MODIFIED without a body if the <code>If-None-Match</code> request header matches it.</li>
+ * <li>returns HTTP 200 OK with entity if found; or HTTP 404 NOT FOUND if entity is not found; or HTTP 400 BAD REQUEST if <code>_fields</code> does not consist of basic attributes of the entity.</li>
  * </ul></li>
  * <li><code>POST /contextPath/model</code> with entity: <code>service#save(entity)</code>
  * <ul>
@@ -72,13 +138,31 @@ import javax.ws.rs.core.UriInfo;
  * 
  * <ul>
  * <li>Updates the existing entity.</li>
- * <li>returns HTTP 200 OK with updated entity (e.g. new id) and <code>Location</code> header with content “/contextPath/model/:id”; or HTTP 400 BAD REQUEST with error information on validation error / if entity's <code>id</code> field is not <code>null</code> nor matches the <code>:id</code> path parameter.</li>
+ * <li>Optionally, updates the entity only if the <code>If-Match</code> request header matches its current <code>ETag</code> (as returned by <code>GET /contextPath/model/:id</code>). If the entity has a <code>&#064;Version</code> attribute, the tag is its version, and the entity is updated by a single <code>UPDATE ... WHERE id = ? AND version = ?</code> statement without reading it first (<code>service#saveIfVersion(entity, version)</code>); the new version is returned in the <code>ETag</code> header.</li>
+ * <li>returns HTTP 200 OK with updated entity (e.g. new id) and <code>Location</code> header with content “/contextPath/model/:id”; or HTTP 400 BAD REQUEST with error information on validation error / if entity's <code>id</code> field is not <code>null</code> nor matches the <code>:id</code> path parameter; or HTTP 412 PRECONDITION FAILED if <code>If-Match</code> does not match the current entity (e.g. as it has been updated concurrently).</li>
+ * </ul></li>
+ * <li><code>PATCH /contextPath/model/:id</code> with a JSON merge patch (<code>application/merge-patch+json</code> or <code>application/json</code>): <code>service#patch(id, values, version)</code>
+ * <ul>
+ * <li>Updates only the attributes given by the patch, e.g. <code>{"status": "CLOSED"}</code>, by a single <code>UPDATE</code> statement without reading the entity first. A <code>null</code> value clears the attribute. Every value is validated against the constraints of its attribute only. The entity's <code>&#064;Version</code> attribute, if any, is incremented.</li>
+ * <li>Optionally, updates the entity only if the <code>If-Match</code> request header matches its current <code>ETag</code>, as for <code>PUT /contextPath/model/:id</code>.</li>
+ * <li>returns HTTP 204 NO CONTENT; or HTTP 404 NOT FOUND if entity is not found; or HTTP 400 BAD REQUEST with error information on validation error / if an attribute is not a basic attribute of the entity, is its id or version attribute, or its value does not match the attribute's type; or HTTP 412 PRECONDITION FAILED if <code>If-Match</code> does not match the current entity.</li>
+ * </ul></li>
+ * <li><code>POST /contextPath/model/_import</code> with newline delimited JSON (<code>application/x-ndjson</code>), one entity per line: <code>service#saveAll(entities)</code>
+ * <ul>
+ * <li>Saves the entities for the first time. The request body is read incrementally; valid entities are saved in batches of <code>Options#IMPORT_BATCH_SIZE</code> entities, one flush per batch. Every batch is committed in its own transaction; if a batch fails, its lines are reported as errors and the other batches are imported nevertheless.</li>
+ * <li>returns HTTP 200 OK with the number of entities imported (<code>imported</code>) and the error information for every line which could not be imported by line number (<code>errors</code>).</li>
+ * </ul></li>
+ * <li><code>POST /contextPath/model/_batch</code> with a list of operations: <code>service#executeBatch(operations)</code>
+ * <ul>
+ * <li>Executes all the operations in order within a single transaction. Every operation is an object with an <code>op</code> field (<code>create</code>, <code>update</code> or <code>delete</code>), an <code>id</code> field (for <code>update</code> and <code>delete</code>) and an <code>entity</code> field (for <code>create</code> and <code>update</code>), e.g. <code>[{"op": "create", "entity": {...}}, {"op": "delete", "id": 3}]</code>.</li>
+ * <li>returns HTTP 200 OK with a list of the <code>status</code> (as if the operation was executed by its own request), <code>id</code> and <code>location</code> of every operation; or HTTP 400 BAD REQUEST with a list of the <code>status</code> and error information of every operation (HTTP 424 FAILED DEPENDENCY for legal operations) if any operation is illegal, in which case no operation is executed; or HTTP 400 BAD REQUEST with error information on validation error.</li>
  * </ul></li>
  * <li><code>DELETE /contextPath/model</code>: <code>service#deleteAll()</code>
  * 
  * <ul>
  * <li>Deletes all entities of the given type; or deletes all entities of the given type which match all the given query parameters if the global <code>Options#ALLOW_FILTERS</code> flag is set to <code>true</code>. Allowed filters are the same as for <code>GET /contextPath/model</code>.</li>
- * <li>returns HTTP 204 NO CONTENT; or HTTP 403 FORBIDDEN if the global <code>Options#ALLOW_DELETE_ALL</code> flag is set to <code>false</code>.</li>
+ * <li>Alternatively, deletes only the entities with the ids given by the <code>_ids</code> query parameter, e.g. <code>DELETE /contextPath/customers?_ids=1,2,3</code>, which match the filters as well (including the filters added by {@link #getFilters(Map)}, e.g. for nested resources).</li>
+ * <li>returns HTTP 204 NO CONTENT; or HTTP 403 FORBIDDEN if the global <code>Options#ALLOW_DELETE_ALL</code> flag is set to <code>false</code>; or HTTP 400 BAD REQUEST if any of the <code>_ids</code> is not a non-negative integer or a filter is illegal.</li>
  * </ul></li>
  * <li><code>DELETE /contextPath/model/:id</code>: <code>service#delete(id)</code>
  * 
@@ -92,7 +176,8 @@ import javax.ws.rs.core.UriInfo;
  * implements {@link CrudIdentifiable} (or inherits from
  * {@link CrudEntity}), create the REST web service endpoint by implementing 
  * <code>CrudResource</code> for the entity and register it as a 
- * <code>&#064;Stateless</code> EJB bean in the container.</p>
+ * <code>&#064;Stateless</code> EJB bean in the container. Its read operations (<code>GET</code>) do not start
+ * a transaction (<code>&#064;TransactionAttribute(SUPPORTS)</code>), so that the service executes them as read-only.</p>
  * <p>
  * As an example, a REST service endpoint implementation for a
  * <code>Customer</code> entity can extend <code>CrudResource</code> like this:</p>
@@ -124,33 +209,538 @@ public class CustomerResource extends CrudResource&lt;Customer&gt; {
 public abstract class CrudResource<T extends CrudIdentifiable> {
     @Context protected UriInfo uri;
     @Context protected SecurityContext context;   
+    @Context protected Providers providers;
+    @Context protected Request request;
+    @Context protected HttpHeaders headers;
+    
+    /** Query parameter holding the maximum number of entities to return. */
+    public static final String LIMIT_PARAMETER = "_limit";
+    /** Query parameter holding the index of the first entity to return. */
+    public static final String OFFSET_PARAMETER = "_offset";
+    /** Query parameter holding the id after which to return entities (keyset pagination). */
+    public static final String AFTER_PARAMETER = "_after";
+    /** Response header holding the value of the <code>_after</code> query parameter for the next page. */
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    /** Query parameter holding the comma-separated ids of the entities to delete. */
+    public static final String IDS_PARAMETER = "_ids";
+    /** Query parameter holding the comma-separated attributes to order the entities by, each prefixed with <code>-</code> for descending order. */
+    public static final String SORT_PARAMETER = "_sort";
+    /** Query parameter holding the comma-separated fields to return instead of the entire entities. */
+    public static final String FIELDS_PARAMETER = "_fields";
+    /** Response header holding the total number of entities for a page. */
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+    /** Prefix of query parameters which are not treated as filters. */
+    public static final String RESERVED_PARAMETER_PREFIX = "_";
     
     /**
-     * Returns a List of all entities.
+     * Returns a List of all entities, or the page of entities requested
+     * by the <code>_limit</code> / <code>_offset</code> query parameters.<p/>
+     * 
+     * <b>Note:</b> Unlike in previous versions, this returns a <code>Response</code> rather than a <code>List</code>,
+     * as it carries the paging headers and the <code>ETag</code>; its entity is the List of entities if it succeeds.
      */
     @GET
     @Path("/")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<T> findAll() {
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Response findAll() {
+        Map<String, String> queryParameters;
+        int offset;
+        int limit;
+        Long after;
+        List<SortOrder> orders;
+        List<String> fields;
+        try {
+            queryParameters = getFilterParameters();
+            offset = getIntQueryParameter(OFFSET_PARAMETER, 0);
+            limit = getIntQueryParameter(LIMIT_PARAMETER, -1);
+            after = getLongQueryParameter(AFTER_PARAMETER);
+            orders = getSortOrders();
+            fields = getFields();
+            if (after != null && offset > 0) {
+                throw new IllegalRequestExceptions.ConflictingQueryParametersException(AFTER_PARAMETER, OFFSET_PARAMETER);
+            }
+            if (after != null && orders != null) {
+                throw new IllegalRequestExceptions.ConflictingQueryParametersException(AFTER_PARAMETER, SORT_PARAMETER);
+            }
+            if (after != null && fields != null) {
+                throw new IllegalRequestExceptions.ConflictingQueryParametersException(AFTER_PARAMETER, FIELDS_PARAMETER);
+            }
+        } catch (IllegalRequestExceptions.IllegalQueryParameterException | IllegalRequestExceptions.ConflictingQueryParametersException
+                | IllegalRequestExceptions.IllegalFilterException | IllegalRequestExceptions.IllegalSortException
+                | IllegalRequestExceptions.IllegalFieldsException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        if (Options.MAX_PAGE_SIZE > 0 && (limit < 0 || limit > Options.MAX_PAGE_SIZE)) {
+            limit = Options.MAX_PAGE_SIZE;
+        }
+        
+        if (after != null) {
+            List<T> entities = new ArrayList<>(findAllEntitiesAfter(queryParameters, after, limit));
+            Response.ResponseBuilder response = Response.status(Response.Status.OK).entity(entities);
+            if (limit > 0 && entities.size() == limit) {
+                buildNextCursorHeaders(response, entities.get(entities.size() - 1).getId(), limit);
+            }
+            return buildConditionalResponse(response, entities, true);
+        }
+        
+        if (fields != null) {
+            List<Map<String, Object>> entities = findAllEntityFieldsBy(queryParameters, orders, fields, offset, limit);
+            JsonArray json = JsonHelper.buildTyped(entities);
+            Response.ResponseBuilder response = Response.status(Response.Status.OK).entity(json);
+            if (Options.RETURN_PAGING_HEADERS && (offset > 0 || limit >= 0)) {
+                buildPagingHeaders(response, queryParameters, offset, limit, entities.size());
+            }
+            return buildConditionalResponse(response, json);
+        }
+        
+        List<T> entities = new ArrayList<>(orders != null
+                ? findAllEntitiesBy(queryParameters, orders, offset, limit) : findAllEntitiesBy(queryParameters, offset, limit));
+        Response.ResponseBuilder response = Response.status(Response.Status.OK).entity(entities);
+        if (Options.RETURN_PAGING_HEADERS && (offset > 0 || limit >= 0)) {
+            buildPagingHeaders(response, queryParameters, offset, limit, entities.size());
+        }
+        return buildConditionalResponse(response, entities, true);
+    }
+
+    /** Media type of newline delimited JSON (NDJSON), i.e. one JSON object per line. */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    
+    /** Media type of a JSON merge patch (RFC 7396). */
+    public static final String APPLICATION_MERGE_PATCH_JSON = "application/merge-patch+json";
+    
+    /** Path of the batch service endpoint, relative to the resource. */
+    public static final String BATCH_PATH = "_batch";
+    
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+    private static final int FAILED_DEPENDENCY = 424;
+    private static final String ID_ATTRIBUTE = "id";
+    
+    /**
+     * Returns all entities as a JSON array which is written to the response
+     * while the entities are fetched from the service in chunks of <code>Options#STREAM_CHUNK_SIZE</code>.
+     */
+    @GET
+    @Path("/_stream")
+    @Produces(MediaType.APPLICATION_JSON)
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Response findAllStreamed() {
+        return stream(false);
+    }
+    
+    /**
+     * Returns all entities as newline delimited JSON (one entity per line) which is written to the response
+     * while the entities are fetched from the service in chunks of <code>Options#STREAM_CHUNK_SIZE</code>.
+     */
+    @GET
+    @Path("/_export")
+    @Produces(APPLICATION_NDJSON)
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Response export() {
+        return stream(true);
+    }
+    
+    private Response stream(boolean ndjson) {
+        Long after;
+        Map<String, String> queryParameters;
+        try {
+            after = getLongQueryParameter(AFTER_PARAMETER);
+            queryParameters = getFilterParameters();
+        } catch (IllegalRequestExceptions.IllegalQueryParameterException | IllegalRequestExceptions.IllegalFilterException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        Iterator<T> entities = iterateAllEntitiesBy(queryParameters, after);
+        Class<T> type = getService().getModelClass();
+        return Response.status(Response.Status.OK)
+                .entity(ndjson ? EntityStreamingOutput.ndjson(providers, type, entities) : EntityStreamingOutput.jsonArray(providers, type, entities))
+                .build();
+    }
+    
+    /**
+     * Returns the filters to apply as returned by {@link #getFilters(Map)} for the filter query parameters
+     * (if filtering is enabled and any filter is given), or <code>null</code> if there is no filter.
+     */
+    private Map<String, String> getFilterParameters() throws IllegalRequestExceptions.IllegalFilterException {
+        Map<String, String> queryParameters = null;
         if (Options.ALLOW_FILTERS) {
-            Map<String, String> queryParameters = getQueryParameters();
+            queryParameters = getQueryParameters();
             if (!queryParameters.isEmpty()) {
-                return new ArrayList<>(findAllEntitiesBy(queryParameters));
+                validateFilters(queryParameters);
+            }
+            else {
+                queryParameters = null;
+            }
+        }
+        Map<String, String> ret = getFilters(queryParameters);
+        return ret == null || ret.isEmpty() ? null : ret;
+    }
+    
+    /**
+     * Returns the filters applied by the service endpoints which find, count or delete all entities (<code>GET /contextPath/model</code>
+     * for every page, order and fields requested, <code>_stream</code>, <code>_export</code>, <code>_count</code> and <code>DELETE /contextPath/model</code>),
+     * given the filter query parameters of the request, which are <code>null</code> if there are none.
+     * By default, returns the filter query parameters provided.<p/>
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources, to add the filter on the parent's foreign key,
+     * such as <code>customerId</code> for <code>/contextPath/customers/1/payments</code>).
+     */
+    protected Map<String, String> getFilters(Map<String, String> queryParameters) {
+        return queryParameters;
+    }
+    
+    /**
+     * Checks the filter query parameters provided against the entity's {@link EntityMetadata},
+     * i.e. whether they apply to an existing attribute and whether their values match the attribute's type,
+     * before any query is executed.
+     */
+    private void validateFilters(Map<String, String> queryParameters) throws IllegalRequestExceptions.IllegalFilterException {
+        EntityMetadata metadata = getService().getMetadata();
+        if (metadata == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : queryParameters.entrySet()) {
+            try {
+                metadata.validate(QueryFilter.parse(entry.getKey(), entry.getValue()));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalRequestExceptions.IllegalFilterException(entry.getKey(), ex.getMessage());
             }
         }
-        return new ArrayList<>(findAllEntitiesBy(null));
     }
 
+    /**
+     * Returns the filter query parameters. A query parameter given multiple times is returned as a single
+     * {@link QueryPredicate#IN} list value, e.g. <code>city=A&amp;city=B</code> as <code>city=(A,B)</code>.
+     */
     Map<String, String> getQueryParameters() {
-            Map<String, String> ret = new HashMap<>();
+        Map<String, String> ret = new HashMap<>();
         MultivaluedMap<String, String> queryParams = uri.getQueryParameters();
         
         for (Map.Entry<String, List<String>> entrySet : queryParams.entrySet()) {
-            ret.put(entrySet.getKey(), entrySet.getValue().get(0));
+            if (!entrySet.getKey().startsWith(RESERVED_PARAMETER_PREFIX)) {
+                List<String> values = entrySet.getValue();
+                ret.put(entrySet.getKey(), values.size() > 1 ? QueryPredicate.joinList(values) : values.get(0));
+            }
         }
         return ret;
     }
-
+    
+    /**
+     * Gets the <code>_sort</code> query parameter as a List of orders, checked against the entity's {@link EntityMetadata},
+     * or returns <code>null</code> if the parameter is absent.
+     */
+    private List<SortOrder> getSortOrders() throws IllegalRequestExceptions.IllegalSortException {
+        String value = uri.getQueryParameters().getFirst(SORT_PARAMETER);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            List<SortOrder> ret = SortOrder.parse(value);
+            EntityMetadata metadata = getService().getMetadata();
+            if (metadata != null) {
+                for (SortOrder order : ret) {
+                    metadata.validate(order);
+                }
+                if (!Options.ALLOW_UNINDEXED_SORT && !metadata.getAttribute(ret.get(0).getAttribute()).isIndexed()) {
+                    throw new IllegalArgumentException("Attribute is not indexed: " + ret.get(0).getAttribute());
+                }
+            }
+            return ret;
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalRequestExceptions.IllegalSortException(SORT_PARAMETER, ex.getMessage());
+        }
+    }
+    
+    /**
+     * Gets the <code>_fields</code> query parameter as a List of fields, checked against the entity's {@link EntityMetadata},
+     * or returns <code>null</code> if the parameter is absent.
+     */
+    private List<String> getFields() throws IllegalRequestExceptions.IllegalFieldsException {
+        String value = uri.getQueryParameters().getFirst(FIELDS_PARAMETER);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        EntityMetadata metadata = getService().getMetadata();
+        List<String> ret = new ArrayList<>();
+        for (String field : value.split(",", -1)) {
+            field = field.trim();
+            try {
+                if (field.isEmpty()) {
+                    throw new IllegalArgumentException("Expected a comma-separated list of attributes, but was: " + value);
+                }
+                if (metadata != null) {
+                    metadata.validateField(field);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalRequestExceptions.IllegalFieldsException(FIELDS_PARAMETER, ex.getMessage());
+            }
+            if (!ret.contains(field)) {
+                ret.add(field);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Gets the reserved query parameter with the key provided as a non-negative int
+     * or returns the default value provided if the parameter is absent.
+     */
+    int getIntQueryParameter(String key, int defaultValue) throws IllegalRequestExceptions.IllegalQueryParameterException {
+        Long ret = getLongQueryParameter(key);
+        if (ret == null) {
+            return defaultValue;
+        }
+        if (ret > Integer.MAX_VALUE) {
+            throw new IllegalRequestExceptions.IllegalQueryParameterException(key, ret.toString());
+        }
+        return ret.intValue();
+    }
+    
+    /**
+     * Gets the reserved query parameter with the key provided as a non-negative Long
+     * or returns <code>null</code> if the parameter is absent.
+     */
+    Long getLongQueryParameter(String key) throws IllegalRequestExceptions.IllegalQueryParameterException {
+        String value = uri.getQueryParameters().getFirst(key);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            long ret = Long.parseLong(value);
+            if (ret < 0) {
+                throw new IllegalRequestExceptions.IllegalQueryParameterException(key, value);
+            }
+            return ret;
+        } catch (NumberFormatException ex) {
+            throw new IllegalRequestExceptions.IllegalQueryParameterException(key, value);
+        }
+    }
+    
+    /**
+     * Gets the reserved query parameter with the key provided as a comma-separated list of non-negative Longs
+     * or returns <code>null</code> if the parameter is absent.
+     */
+    List<Long> getLongListQueryParameter(String key) throws IllegalRequestExceptions.IllegalQueryParameterException {
+        String value = uri.getQueryParameters().getFirst(key);
+        if (value == null) {
+            return null;
+        }
+        List<Long> ret = new ArrayList<>();
+        for (String element : value.split(",")) {
+            element = element.trim();
+            if (element.isEmpty()) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(element);
+                if (id < 0) {
+                    throw new IllegalRequestExceptions.IllegalQueryParameterException(key, element);
+                }
+                ret.add(id);
+            } catch (NumberFormatException ex) {
+                throw new IllegalRequestExceptions.IllegalQueryParameterException(key, element);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Adds the <code>X-Next-Cursor</code> header and the <code>Link</code> header
+     * (with relation <code>next</code>) to the keyset page response provided.
+     */
+    private void buildNextCursorHeaders(Response.ResponseBuilder response, Long lastId, int limit) {
+        response.header(NEXT_CURSOR_HEADER, lastId);
+        if (Options.RETURN_PAGING_HEADERS) {
+            response.links(Link.fromUriBuilder(uri.getRequestUriBuilder()
+                    .replaceQueryParam(AFTER_PARAMETER, lastId)
+                    .replaceQueryParam(LIMIT_PARAMETER, limit))
+                    .rel("next").build());
+        }
+    }
+    
+    /**
+     * Adds the <code>X-Total-Count</code> header and the <code>Link</code> header
+     * (with relations <code>first</code>, <code>prev</code>, <code>next</code> and <code>last</code>)
+     * to the page response provided.
+     */
+    private void buildPagingHeaders(Response.ResponseBuilder response, Map<String, String> queryParameters, int offset, int limit, int pageSize) {
+        long total;
+        if (offset == 0 && (limit < 0 || pageSize < limit)) {
+            // the page contains all entities; no need to count
+            total = pageSize;
+        }
+        else {
+            total = countAllEntitiesBy(queryParameters);
+        }
+        response.header(TOTAL_COUNT_HEADER, total);
+        
+        if (limit <= 0) {
+            return;
+        }
+        List<Link> links = new ArrayList<>();
+        links.add(buildPageLink("first", 0, limit));
+        if (offset > 0) {
+            links.add(buildPageLink("prev", Math.max(offset - limit, 0), limit));
+        }
+        if (offset + limit < total) {
+            links.add(buildPageLink("next", offset + limit, limit));
+        }
+        long last = total == 0 ? 0 : ((total - 1) / limit) * limit;
+        links.add(buildPageLink("last", last, limit));
+        response.links(links.toArray(new Link[links.size()]));
+    }
+    
+    private Link buildPageLink(String rel, long offset, int limit) {
+        return Link.fromUriBuilder(uri.getRequestUriBuilder()
+                .replaceQueryParam(OFFSET_PARAMETER, offset)
+                .replaceQueryParam(LIMIT_PARAMETER, limit))
+                .rel(rel).build();
+    }
+    
+    /**
+     * Builds the response provided with a strong <code>ETag</code> for the entities provided
+     * (a single entity if <code>array</code> is <code>false</code>), or returns HTTP 304 NOT MODIFIED
+     * if the <code>If-None-Match</code> request header matches it.<p/>
+     * 
+     * If the entity has a version attribute, the tag is computed from the ids and versions of the entities
+     * (for a single entity, it is the version itself); otherwise, from their serialized content,
+     * which is then returned as the body so that the entities are serialized only once. As the content is buffered
+     * in memory for that, there is no such tag for more than <code>Options#MAX_CONTENT_ETAG_ENTITIES</code> entities.
+     */
+    private Response buildConditionalResponse(Response.ResponseBuilder response, List<T> entities, boolean array) {
+        if (!Options.RETURN_ETAGS || request == null) {
+            return response.build();
+        }
+        if (!array) {
+            EntityTag tag = getVersionTag(entities.get(0));
+            if (tag != null) {
+                return buildConditionalResponse(response.build(), tag, null);
+            }
+        }
+        byte[] versions = getVersions(entities);
+        if (versions != null) {
+            return buildConditionalResponse(response, versions, null);
+        }
+        if (Options.MAX_CONTENT_ETAG_ENTITIES >= 0 && entities.size() > Options.MAX_CONTENT_ETAG_ENTITIES) {
+            return response.build();
+        }
+        byte[] body = serialize(entities, array);
+        if (body == null) {
+            return response.build();
+        }
+        return buildConditionalResponse(response, body, body);
+    }
+    
+    /**
+     * Builds the response provided with a strong <code>ETag</code> for the JSON value provided, or returns
+     * HTTP 304 NOT MODIFIED if the <code>If-None-Match</code> request header matches it.
+     */
+    private Response buildConditionalResponse(Response.ResponseBuilder response, JsonValue json) {
+        if (!Options.RETURN_ETAGS || request == null) {
+            return response.build();
+        }
+        return buildConditionalResponse(response, json.toString().getBytes(StandardCharsets.UTF_8), null);
+    }
+    
+    private Response buildConditionalResponse(Response.ResponseBuilder response, byte[] content, byte[] body) {
+        Response built = response.build();
+        // the total count is part of the representation of a page
+        return buildConditionalResponse(built, hash(content, built.getHeaderString(TOTAL_COUNT_HEADER)), body);
+    }
+    
+    private Response buildConditionalResponse(Response built, EntityTag tag, byte[] body) {
+        Response.ResponseBuilder ret = request.evaluatePreconditions(tag);
+        if (ret == null) {
+            ret = Response.fromResponse(built);
+            if (body != null) {
+                ret.entity(body);
+            }
+        }
+        ret.tag(tag);
+        CacheControl cacheControl = getCacheControl();
+        if (cacheControl != null) {
+            ret.cacheControl(cacheControl);
+        }
+        return ret.build();
+    }
+    
+    /**
+     * Returns the strong <code>ETag</code> of the entity provided as returned by the GET service endpoint,
+     * or <code>null</code> if it cannot be computed.
+     */
+    private EntityTag getEntityTag(T entity) {
+        EntityTag ret = getVersionTag(entity);
+        if (ret != null) {
+            return ret;
+        }
+        byte[] body = serialize(Collections.singletonList(entity), false);
+        return body != null ? hash(body, null) : null;
+    }
+    
+    /**
+     * Returns the version of the entity provided as its <code>ETag</code> (as milliseconds for a timestamp version),
+     * or <code>null</code> if the entity has no version attribute.
+     */
+    private EntityTag getVersionTag(T entity) {
+        EntityMetadata metadata = getService().getMetadata();
+        Object version = metadata != null ? metadata.getVersion(entity) : null;
+        if (version == null) {
+            return null;
+        }
+        return new EntityTag(String.valueOf(version instanceof Date ? ((Date) version).getTime() : version));
+    }
+    
+    /**
+     * Returns the entities provided serialized to JSON as they would be serialized by the JAX-RS implementation,
+     * or <code>null</code> if no JSON MessageBodyWriter is available.
+     */
+    private byte[] serialize(List<T> entities, boolean array) {
+        if (providers == null) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            Class<T> type = getService().getModelClass();
+            (array ? EntityStreamingOutput.jsonArray(providers, type, entities.iterator())
+                    : new EntityStreamingOutput<>(providers, type, entities.iterator(), "", "", "", "")).write(body);
+        } catch (IOException | WebApplicationException ex) {
+            return null;
+        }
+        return body.toByteArray();
+    }
+    
+    private static EntityTag hash(byte[] content, String totalCount) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(content);
+        if (totalCount != null) {
+            digest.update(("/" + totalCount).getBytes(StandardCharsets.UTF_8));
+        }
+        return new EntityTag(String.format("%064x", new BigInteger(1, digest.digest())));
+    }
+    
+    /**
+     * Returns the ids and versions of the entities provided as the content of their <code>ETag</code>,
+     * or <code>null</code> if the entity has no version attribute.
+     */
+    private byte[] getVersions(List<T> entities) {
+        EntityMetadata metadata = getService().getMetadata();
+        if (metadata == null || !metadata.hasVersion()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (T entity : entities) {
+            Object version = metadata.getVersion(entity);
+            if (version == null) {
+                return null;
+            }
+            sb.append(entity.getId()).append(':').append(version).append(',');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
     
     /**
      * Returns the entity with the {@link CrudEntity#getId()} provided
@@ -159,10 +749,26 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_JSON)
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     public Response findById(@PathParam("id") Long id) {
+        List<String> fields;
+        try {
+            fields = getFields();
+        } catch (IllegalRequestExceptions.IllegalFieldsException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        if (fields != null) {
+            Map<String, Object> found = findEntityFieldsById(id, fields);
+            if (found == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            JsonObject json = JsonHelper.buildTyped(found);
+            return buildConditionalResponse(Response.status(Response.Status.OK).entity(json), json);
+        }
+        
         final T found = findEntityById(id);
         if (found != null) {
-            return Response.status(Response.Status.OK).entity(found).build();
+            return buildConditionalResponse(Response.status(Response.Status.OK).entity(found), Collections.singletonList(found), false);
         }
         else {
             return Response.status(Response.Status.NOT_FOUND).build();
@@ -174,18 +780,19 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
      */
     @GET
     @Path("/_count")
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     public Response countAll() {
         if (!Options.ALLOW_COUNT) {
             return Response.status(Response.Status.FORBIDDEN).build();
         }
         
-        if (Options.ALLOW_FILTERS) {
-            Map<String, String> queryParameters = getQueryParameters();
-            if (!queryParameters.isEmpty()) {
-                return Response.status(Response.Status.OK).entity(countAllEntitiesBy(queryParameters)).build();
-            }
+        Map<String, String> queryParameters;
+        try {
+            queryParameters = getFilterParameters();
+        } catch (IllegalRequestExceptions.IllegalFilterException ex) {
+            return new RestErrorBuilder(ex).createResponse();
         }
-        return Response.status(Response.Status.OK).entity(countAllEntitiesBy(null)).build();
+        return Response.status(Response.Status.OK).entity(countAllEntitiesBy(queryParameters)).build();
     }
     
     /**
@@ -214,27 +821,463 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
             return new RestErrorBuilder(new IllegalRequestExceptions.BodyIdDoesNotMatchPathException()).createResponse();
         }
         entity.setId(id); // enforce id if null
+        String ifMatch = headers != null ? headers.getHeaderString(HttpHeaders.IF_MATCH) : null;
+        if (ifMatch != null && request != null) {
+            return saveConditionally(entity, ifMatch);
+        }
         return save(entity);
     }
     
+    /**
+     * Updates the entity provided if the <code>If-Match</code> request header provided matches the <code>ETag</code>
+     * of the current entity, and returns the respective response.<p/>
+     * 
+     * If the entity has a version attribute and a single tag is given, the tag is the expected version and the entity
+     * is updated by a single statement without reading it first (see {@link CrudService#saveIfVersion(CrudIdentifiable, Object)});
+     * otherwise, the current entity is read to compare its tag.
+     */
+    private Response saveConditionally(T entity, String ifMatch) {
+        Object version;
+        try {
+            version = getExpectedVersion(ifMatch);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.PRECONDITION_FAILED).build();
+        }
+        if (version != null) {
+            try {
+                entity = saveEntityIfVersion(entity, version);
+            } catch (OptimisticLockException ex) {
+                return Response.status(Response.Status.PRECONDITION_FAILED).build();
+            } catch (ConstraintViolationException ex) {
+                return new RestValidationConstraintErrorBuilder(ex).createResponse();
+            }
+            return Response.fromResponse(buildSaveReply(entity, false)).tag(getVersionTag(entity)).build();
+        }
+        
+        Response.ResponseBuilder preconditionFailed = evaluateIfMatch(entity.getId());
+        if (preconditionFailed != null) {
+            return preconditionFailed.build();
+        }
+        return save(entity);
+    }
+    
+    /**
+     * Returns the version the <code>If-Match</code> request header provided expects if the entity has a version attribute
+     * and a single tag is given; otherwise, <code>null</code>.
+     * 
+     * @throws IllegalArgumentException if the tag is weak or is not a legal version
+     */
+    private Object getExpectedVersion(String ifMatch) throws IllegalArgumentException {
+        EntityMetadata metadata = getService().getMetadata();
+        if (metadata == null || !metadata.hasVersion() || ifMatch.contains(",") || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        EntityTag tag = EntityTag.valueOf(ifMatch.trim());
+        if (tag.isWeak()) {
+            // If-Match requires the strong comparison
+            throw new IllegalArgumentException("Weak entity tag: " + ifMatch);
+        }
+        return QueryValues.convert(tag.getValue(), metadata.getVersionAttribute().getJavaType());
+    }
+    
+    /**
+     * Reads the entity with the id provided and evaluates the <code>If-Match</code> request header against its <code>ETag</code>.
+     * Returns the HTTP 412 PRECONDITION FAILED response if it does not match; otherwise, <code>null</code>.
+     */
+    private Response.ResponseBuilder evaluateIfMatch(Long id) {
+        T current = findEntityById(id);
+        if (current == null) {
+            return request.evaluatePreconditions();
+        }
+        EntityTag tag = getEntityTag(current);
+        return tag != null ? request.evaluatePreconditions(tag) : Response.status(Response.Status.PRECONDITION_FAILED);
+    }
+    
+    /**
+     * Updates only the attributes given by the JSON merge patch provided of the entity with the {@link CrudEntity#getId()} provided.<p/>
+     * Returns an error if occurred during processing.
+     */
+    @PATCH
+    @Path("/{id}")
+    @Consumes({APPLICATION_MERGE_PATCH_JSON, MediaType.APPLICATION_JSON})
+    public Response patch(@PathParam("id") Long id, InputStream body) {
+        Map<String, Object> values;
+        try {
+            values = getPatchValues(Json.createReader(new InputStreamReader(body, StandardCharsets.UTF_8)).readObject());
+        } catch (JsonException | IllegalRequestExceptions.IllegalPatchException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        
+        Object version = null;
+        String ifMatch = headers != null ? headers.getHeaderString(HttpHeaders.IF_MATCH) : null;
+        if (ifMatch != null && request != null) {
+            try {
+                version = getExpectedVersion(ifMatch);
+            } catch (IllegalArgumentException ex) {
+                return Response.status(Response.Status.PRECONDITION_FAILED).build();
+            }
+            if (version == null) {
+                Response.ResponseBuilder preconditionFailed = evaluateIfMatch(id);
+                if (preconditionFailed != null) {
+                    return preconditionFailed.build();
+                }
+            }
+        }
+        
+        boolean patched;
+        try {
+            patched = patchEntity(id, values, version);
+        } catch (ConstraintViolationException ex) {
+            return new RestValidationConstraintErrorBuilder(ex).createResponse();
+        }
+        if (!patched) {
+            return Response.status(version != null ? Response.Status.PRECONDITION_FAILED : Response.Status.NOT_FOUND).build();
+        }
+        return Response.status(Response.Status.NO_CONTENT).build();
+    }
+    
+    /**
+     * Returns the values of the JSON merge patch provided by attribute name, converted to the attributes' types.
+     */
+    private Map<String, Object> getPatchValues(JsonObject patch) throws IllegalRequestExceptions.IllegalPatchException {
+        EntityMetadata metadata = getService().getMetadata();
+        Map<String, Object> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonValue> entry : patch.entrySet()) {
+            EntityMetadata.AttributeMetadata attribute = metadata != null ? metadata.getAttribute(entry.getKey()) : null;
+            Class<?> type = attribute != null ? attribute.getJavaType() : Object.class;
+            JsonValue value = entry.getValue();
+            try {
+                if (metadata != null) {
+                    metadata.validateUpdatableField(entry.getKey());
+                }
+                switch (value.getValueType()) {
+                    case NULL:
+                        if (type.isPrimitive()) {
+                            throw new IllegalArgumentException("Expected a value, but was: null");
+                        }
+                        ret.put(entry.getKey(), null);
+                        break;
+                    case STRING:
+                        ret.put(entry.getKey(), QueryValues.convert(((JsonString) value).getString(), type));
+                        break;
+                    case NUMBER:
+                    case TRUE:
+                    case FALSE:
+                        ret.put(entry.getKey(), QueryValues.convert(value.toString(), type));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Expected a single value, but was: " + value);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalRequestExceptions.IllegalPatchException(entry.getKey(), ex.getMessage());
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Inserts all the entities provided as newline delimited JSON (one entity per line), reading the request body
+     * incrementally and saving the entities in batches of <code>Options#IMPORT_BATCH_SIZE</code>.<p/>
+     * 
+     * This does not run within a transaction (<code>&#064;TransactionAttribute(NOT_SUPPORTED)</code>), so that the service
+     * commits every batch in its own transaction, and a failing batch does not roll back the other batches.<p/>
+     * Returns the number of entities imported and the errors which occurred, by line number.
+     */
+    @POST
+    @Path("/_import")
+    @Consumes(APPLICATION_NDJSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Response importAll(InputStream body) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        long imported = 0;
+        Map<Integer, Map> errors = new LinkedHashMap<>();
+        List<T> batch = new ArrayList<>();
+        List<Integer> batchLines = new ArrayList<>();
+        
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            T entity;
+            try {
+                entity = readEntity(line);
+            } catch (IOException | WebApplicationException | ProcessingException ex) {
+                errors.put(lineNumber, new RestErrorBuilder(ex).getResponseBody());
+                continue;
+            }
+            if (entity.getId() != null) {
+                errors.put(lineNumber, new RestErrorBuilder(new IllegalRequestExceptions.BodyIdIsNotNullException()).getResponseBody());
+                continue;
+            }
+            Set<ConstraintViolation<T>> violations = getService().validate(entity);
+            if (violations != null && !violations.isEmpty()) {
+                errors.put(lineNumber, new RestValidationConstraintErrorBuilder(new ConstraintViolationException(violations)).getResponseBody());
+                continue;
+            }
+            batch.add(entity);
+            batchLines.add(lineNumber);
+            if (batch.size() >= Options.IMPORT_BATCH_SIZE) {
+                imported += importBatch(batch, batchLines, errors);
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += importBatch(batch, batchLines, errors);
+        }
+        
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("imported", imported);
+        ret.put("errors", errors);
+        return Response.status(Response.Status.OK).entity(JsonHelper.buildTyped(ret)).build();
+    }
+    
+    /**
+     * Saves the batch of entities provided, registers an error for each of its lines if saving failed,
+     * clears the batch and returns the number of entities saved.
+     */
+    private int importBatch(List<T> batch, List<Integer> batchLines, Map<Integer, Map> errors) {
+        int ret = 0;
+        try {
+            saveEntities(batch);
+            ret = batch.size();
+        } catch (ConstraintViolationException ex) {
+            Map error = new RestValidationConstraintErrorBuilder(ex).getResponseBody();
+            for (Integer batchLine : batchLines) {
+                errors.put(batchLine, error);
+            }
+        } catch (RuntimeException ex) {
+            Map error = new RestErrorBuilder(ex).getResponseBody();
+            for (Integer batchLine : batchLines) {
+                errors.put(batchLine, error);
+            }
+        }
+        batch.clear();
+        batchLines.clear();
+        return ret;
+    }
+    
+    /**
+     * Deserializes the entity from the JSON provided by the JAX-RS {@link MessageBodyReader} for the entity type.
+     */
+    private T readEntity(String json) throws IOException {
+        Class<T> type = getService().getModelClass();
+        MessageBodyReader<T> reader = providers.getMessageBodyReader(type, type, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE);
+        if (reader == null) {
+            throw new ProcessingException("No JSON MessageBodyReader found for " + type.getName());
+        }
+        return reader.readFrom(type, type, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                new MultivaluedHashMap<String, String>(), new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Executes all the create / update / delete operations provided as a JSON array within a single transaction.
+     * Every operation is a JSON object with an <code>op</code> (<code>create</code>, <code>update</code> or <code>delete</code>),
+     * an <code>id</code> (for update and delete) and an <code>entity</code> (for create and update).<p/>
+     * Returns the status and, if applicable, the id and <code>Location</code> of every operation, in the same order;
+     * or returns with an error if any operation is illegal, in which case no operation is executed,
+     * or if any operation fails, in which case the transaction is rolled back.
+     */
+    @POST
+    @Path("/" + BATCH_PATH)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response batch(InputStream body) {
+        JsonArray operationsJson;
+        try {
+            operationsJson = Json.createReader(new InputStreamReader(body, StandardCharsets.UTF_8)).readArray();
+        } catch (JsonException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        
+        List<BatchOperation<T>> operations = new ArrayList<>();
+        List<Map> errors = new ArrayList<>();
+        boolean illegal = false;
+        for (JsonValue operationJson : operationsJson) {
+            Map error = null;
+            try {
+                operations.add(readBatchOperation(operationJson));
+            } catch (ConstraintViolationException ex) {
+                error = new RestValidationConstraintErrorBuilder(ex).getResponseBody();
+            } catch (IllegalRequestExceptions.IllegalBatchOperationException | IllegalRequestExceptions.BodyIdIsNotNullException 
+                    | IllegalRequestExceptions.BodyIdDoesNotMatchPathException | IOException | WebApplicationException | ProcessingException ex) {
+                error = new RestErrorBuilder(ex).getResponseBody();
+            }
+            errors.add(error);
+            illegal |= error != null;
+        }
+        if (illegal) {
+            return buildBatchErrorReply(errors, Response.Status.BAD_REQUEST);
+        }
+        
+        List<T> entities;
+        try {
+            entities = executeBatchOperations(operations);
+        } catch (ConstraintViolationException ex) {
+            return new RestValidationConstraintErrorBuilder(ex).createResponse();
+        } catch (BatchOperation.FailedException ex) {
+            // the transaction has been marked for rollback
+            if (ex.getIndex() < 0) {
+                return new RestErrorBuilder(ex.getCause()).createResponse();
+            }
+            errors = new ArrayList<>(Collections.<Map>nCopies(operations.size(), null));
+            errors.set(ex.getIndex(), new RestErrorBuilder(ex.getCause()).getResponseBody());
+            return buildBatchErrorReply(errors, getBatchErrorStatus(ex.getCause()));
+        }
+        return buildBatchReply(operations, entities);
+    }
+    
+    private BatchOperation<T> readBatchOperation(JsonValue operationJson) throws IOException, IllegalRequestExceptions.IllegalBatchOperationException, 
+            IllegalRequestExceptions.BodyIdIsNotNullException, IllegalRequestExceptions.BodyIdDoesNotMatchPathException {
+        if (operationJson.getValueType() != JsonValue.ValueType.OBJECT) {
+            throw new IllegalRequestExceptions.IllegalBatchOperationException("Batch operation is expected to be a JSON object.");
+        }
+        JsonObject json = (JsonObject) operationJson;
+        Long id = null;
+        if (json.containsKey("id") && json.get("id").getValueType() == JsonValue.ValueType.NUMBER) {
+            id = json.getJsonNumber("id").longValue();
+        }
+        
+        String op = json.getString("op", "");
+        switch (op) {
+            case "create": {
+                T entity = readBatchEntity(json);
+                if (entity.getId() != null) {
+                    throw new IllegalRequestExceptions.BodyIdIsNotNullException();
+                }
+                return BatchOperation.create(entity);
+            }
+            case "update": {
+                if (id == null) {
+                    throw new IllegalRequestExceptions.IllegalBatchOperationException("Batch update operation's id field is expected to be a number.");
+                }
+                T entity = readBatchEntity(json);
+                if (entity.getId() != null && !entity.getId().equals(id)) {
+                    throw new IllegalRequestExceptions.BodyIdDoesNotMatchPathException();
+                }
+                entity.setId(id); // enforce id if null
+                return BatchOperation.update(entity);
+            }
+            case "delete":
+                if (id == null) {
+                    throw new IllegalRequestExceptions.IllegalBatchOperationException("Batch delete operation's id field is expected to be a number.");
+                }
+                return BatchOperation.delete(id);
+            default:
+                throw new IllegalRequestExceptions.IllegalBatchOperationException("Batch operation's op field is expected to be one of create, update, delete.");
+        }
+    }
+    
+    /**
+     * Reads and validates the <code>entity</code> field of the batch operation provided.
+     */
+    private T readBatchEntity(JsonObject json) throws IOException, IllegalRequestExceptions.IllegalBatchOperationException {
+        if (!json.containsKey("entity") || json.get("entity").getValueType() != JsonValue.ValueType.OBJECT) {
+            throw new IllegalRequestExceptions.IllegalBatchOperationException("Batch operation's entity field is expected to be a JSON object.");
+        }
+        T entity = readEntity(json.getJsonObject("entity").toString());
+        Set<ConstraintViolation<T>> violations = getService().validate(entity);
+        if (violations != null && !violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+        return entity;
+    }
+    
+    /**
+     * Returns the status of the batch operation which failed with the exception provided,
+     * as if the operation was executed by its own request.
+     */
+    private static Response.Status getBatchErrorStatus(PersistenceException exception) {
+        if (exception instanceof EntityNotFoundException) {
+            return Response.Status.NOT_FOUND;
+        }
+        if (exception instanceof OptimisticLockException || exception instanceof EntityExistsException) {
+            return Response.Status.CONFLICT;
+        }
+        return Response.Status.BAD_REQUEST;
+    }
+    
+    /**
+     * Builds the reply of a batch which has not been executed: the status provided and error information for every
+     * operation with an error, and HTTP 424 FAILED DEPENDENCY for every other operation.
+     */
+    private Response buildBatchErrorReply(List<Map> errors, Response.Status status) {
+        Map notExecuted = new RestErrorBuilder(new IllegalRequestExceptions.BatchOperationNotExecutedException()).getResponseBody();
+        List<Map> results = new ArrayList<>();
+        for (Map error : errors) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            if (error != null) {
+                result.put("status", status.getStatusCode());
+                result.putAll(error);
+            }
+            else {
+                result.put("status", FAILED_DEPENDENCY);
+                result.putAll(notExecuted);
+            }
+            results.add(result);
+        }
+        return Response.status(status).entity(JsonHelper.buildTyped(results)).build();
+    }
+    
+    private Response buildBatchReply(List<BatchOperation<T>> operations, List<T> entities) {
+        String basePath = getRequestBasePath().replaceFirst("/?" + BATCH_PATH + "/?$", "");
+        List<Map> results = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            if (operations.get(i).getType() == BatchOperation.Type.DELETE) {
+                result.put("status", Response.Status.NO_CONTENT.getStatusCode());
+            }
+            else {
+                boolean created = operations.get(i).getType() == BatchOperation.Type.CREATE;
+                result.put("status", (created ? Response.Status.CREATED : Response.Status.OK).getStatusCode());
+                result.put("id", entities.get(i).getId());
+                result.put("location", basePath + "/" + entities.get(i).getId());
+            }
+            results.add(result);
+        }
+        return Response.status(Response.Status.OK).entity(JsonHelper.buildTyped(results)).build();
+    }
+    
     /**
      * Deletes all entities.
      */
     @DELETE
     @Path("/")
     public Response deleteAll() {
+        List<Long> ids;
+        try {
+            ids = getLongListQueryParameter(IDS_PARAMETER);
+        } catch (IllegalRequestExceptions.IllegalQueryParameterException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
         if (!Options.ALLOW_DELETE_ALL) {
             return Response.status(Response.Status.FORBIDDEN).build();
         }
         
-        if (Options.ALLOW_FILTERS) {
-            Map<String, String> queryParameters = getQueryParameters();
-            if (!queryParameters.isEmpty()) {
-                deleteAllEntitiesBy(queryParameters);
-                return Response.status(Response.Status.NO_CONTENT).build();
+        Map<String, String> queryParameters;
+        try {
+            queryParameters = getFilterParameters();
+        } catch (IllegalRequestExceptions.IllegalFilterException ex) {
+            return new RestErrorBuilder(ex).createResponse();
+        }
+        if (ids == null) {
+            deleteAllEntitiesBy(queryParameters);
+        }
+        else if (queryParameters == null) {
+            deleteEntities(ids);
+        }
+        else if (!ids.isEmpty()) {
+            // the ids are restricted to the entities matching the filters, e.g. to the children of a nested resource's parent
+            List<String> values = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                values.add(id.toString());
             }
+            queryParameters = new HashMap<>(queryParameters);
+            queryParameters.put(ID_ATTRIBUTE, QueryPredicate.joinList(values));
+            deleteAllEntitiesBy(queryParameters);
         }
-        deleteAllEntitiesBy(null);
         return Response.status(Response.Status.NO_CONTENT).build();
     }
        
@@ -270,7 +1313,21 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
     }
     
     /**
-     * Calls the service to find all entities which match the queryParameters provided.
+     * Returns the <code>Cache-Control</code> header returned along with the <code>ETag</code> of the GET service endpoints
+     * (e.g. to let clients revalidate cached responses by <code>no-cache</code>),
+     * or <code>null</code> for no such header, which is the default.
+     * 
+     * Extension point to add custom behavior.
+     */
+    protected CacheControl getCacheControl() {
+        return null;
+    }
+    
+    /**
+     * Calls the service to find all entities which match the queryParameters provided.<p/>
+     * 
+     * Note that this is only called if no page, order or fields are requested;
+     * override {@link #getFilters(Map)} to add a filter to every query instead.
      * 
      * Extension point to add custom behavior (e.g. for nested resources).
      */
@@ -283,6 +1340,64 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
         }
     }
     
+    /**
+     * Calls the service to find the page of entities which match the queryParameters provided.
+     * A negative <code>limit</code> means no limit.<p/>
+     * 
+     * If no page is requested, this delegates to {@link #findAllEntitiesBy(Map)}.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<T> findAllEntitiesBy(Map<String, String> queryParameters, int offset, int limit) {
+        if (offset == 0 && limit < 0) {
+            return findAllEntitiesBy(queryParameters);
+        }
+        return getService().findBy(queryParameters, offset, limit);
+    }
+    
+    /**
+     * Calls the service to find the page of entities which match the queryParameters provided,
+     * ordered by the orders provided.
+     * A negative <code>limit</code> means no limit.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<T> findAllEntitiesBy(Map<String, String> queryParameters, List<SortOrder> orders, int offset, int limit) {
+        return getService().findBy(queryParameters, orders, offset, limit);
+    }
+    
+    /**
+     * Calls the service to find the fields provided of the page of entities which match the queryParameters provided,
+     * ordered by the orders provided (which may be <code>null</code>).
+     * A negative <code>limit</code> means no limit.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<Map<String, Object>> findAllEntityFieldsBy(Map<String, String> queryParameters, List<SortOrder> orders, List<String> fields, int offset, int limit) {
+        return getService().findFieldsBy(queryParameters, orders, fields, offset, limit);
+    }
+    
+    /**
+     * Calls the service to find the page of entities which match the queryParameters provided
+     * and the id of which is greater than <code>after</code>.
+     * A negative <code>limit</code> means no limit.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<T> findAllEntitiesAfter(Map<String, String> queryParameters, Long after, int limit) {
+        return getService().findAfter(queryParameters, after, limit);
+    }
+    
+    /**
+     * Calls the service to iterate over all entities which match the queryParameters provided
+     * and the id of which is greater than <code>after</code>.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected Iterator<T> iterateAllEntitiesBy(Map<String, String> queryParameters, Long after) {
+        return getService().iterateBy(queryParameters, after, Options.STREAM_CHUNK_SIZE);
+    }
+    
     /**
      * Calls the service to find the entity with the id provided.
      * 
@@ -292,6 +1407,15 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
         return getService().findById(id);
     }
     
+    /**
+     * Calls the service to find the fields provided of the entity with the id provided.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected Map<String, Object> findEntityFieldsById(Long id, List<String> fields) {
+        return getService().findFieldsById(id, fields);
+    }
+    
     /**
      * Calls the service to count all entities which match the queryParameters provided.
      * 
@@ -316,6 +1440,43 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
         return entity;
     }
     
+    /**
+     * Calls the service to update the entity provided if its version still equals the version provided.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected T saveEntityIfVersion(T entity, Object version) throws OptimisticLockException {
+        return getService().saveIfVersion(entity, version);
+    }
+    
+    /**
+     * Calls the service to update the attributes provided of the entity with the id provided, if its version still equals
+     * the version provided (unless it is <code>null</code>).
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected boolean patchEntity(Long id, Map<String, Object> values, Object version) {
+        return getService().patch(id, values, version);
+    }
+    
+    /**
+     * Calls the save service with all the entities provided.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<T> saveEntities(List<T> entities) {
+        return getService().saveAll(entities);
+    }
+    
+    /**
+     * Calls the service to execute all the batch operations provided.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected List<T> executeBatchOperations(List<BatchOperation<T>> operations) {
+        return getService().executeBatch(operations);
+    }
+    
     /**
      * Calls the delete entity service method.
      * 
@@ -325,6 +1486,15 @@ public abstract class CrudResource<T extends CrudIdentifiable> {
         getService().delete(id);
     }
     
+    /**
+     * Calls the service to delete the entities with the ids provided.
+     * 
+     * Extension point to add custom behavior (e.g. for nested resources).
+     */
+    protected void deleteEntities(List<Long> ids) {
+        getService().deleteByIds(ids);
+    }
+    
     /**
      * Calls the service to delete all entities which match the queryParameters provided.
      * 
@@ -0,0 +1,101 @@
+package ch.codebulb.crudlet.webservice;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * A {@link StreamingOutput} which writes the entities provided by an {@link Iterator}
+ * to the response one by one as they are fetched rather than materializing them in a List first.<p/>
+ *
+ * Every entity is serialized to JSON by the {@link MessageBodyWriter} the JAX-RS implementation provides
+ * for the entity type, hence exactly as it would be serialized as part of a regular response.
+ */
+public class EntityStreamingOutput<T> implements StreamingOutput {
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private final Providers providers;
+    private final Class<T> type;
+    private final Iterator<T> entities;
+    private final byte[] prefix;
+    private final byte[] separator;
+    private final byte[] terminator;
+    private final byte[] suffix;
+
+    /**
+     * Creates a streaming output which writes the <code>prefix</code>, then every entity followed by the <code>terminator</code>
+     * with the <code>separator</code> between two entities, and finally the <code>suffix</code>.
+     */
+    public EntityStreamingOutput(Providers providers, Class<T> type, Iterator<T> entities, String prefix, String separator, String terminator, String suffix) {
+        this.providers = providers;
+        this.type = type;
+        this.entities = entities;
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.separator = separator.getBytes(StandardCharsets.UTF_8);
+        this.terminator = terminator.getBytes(StandardCharsets.UTF_8);
+        this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a streaming output which writes the entities as a JSON array.
+     */
+    public static <T> EntityStreamingOutput<T> jsonArray(Providers providers, Class<T> type, Iterator<T> entities) {
+        return new EntityStreamingOutput<>(providers, type, entities, "[", ",", "", "]");
+    }
+
+    /**
+     * Creates a streaming output which writes the entities as newline delimited JSON (NDJSON), i.e. one entity per line.
+     */
+    public static <T> EntityStreamingOutput<T> ndjson(Providers providers, Class<T> type, Iterator<T> entities) {
+        return new EntityStreamingOutput<>(providers, type, entities, "", "", "\n", "");
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        MessageBodyWriter<T> writer = providers.getMessageBodyWriter(type, type, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE);
+        if (writer == null) {
+            throw new WebApplicationException("No JSON MessageBodyWriter found for " + type.getName());
+        }
+        // some writers close the stream they've written to
+        OutputStream entityOutput = new NonClosingOutputStream(output);
+
+        output.write(prefix);
+        boolean first = true;
+        while (entities.hasNext()) {
+            if (!first) {
+                output.write(separator);
+            }
+            writer.writeTo(entities.next(), type, type, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                    new MultivaluedHashMap<String, Object>(), entityOutput);
+            output.write(terminator);
+            first = false;
+        }
+        output.write(suffix);
+        output.flush();
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
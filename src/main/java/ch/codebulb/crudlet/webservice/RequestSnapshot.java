@@ -0,0 +1,503 @@
+package ch.codebulb.crudlet.webservice;
+
+import java.net.URI;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.AbstractMultivaluedMap;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+
+/**
+ * Copies of the request-scoped <code>&#064;Context</code> objects of a request which stay valid on any thread and after the
+ * request has been suspended, as the objects injected by the JAX-RS implementation are bound to the request thread.<p/>
+ *
+ * All the values are read when the copy is created; values which cannot be parsed are copied as absent.
+ */
+class RequestSnapshot {
+    private RequestSnapshot() {}
+
+    static UriInfo of(UriInfo uri) {
+        return uri != null ? new Uri(uri) : null;
+    }
+
+    static HttpHeaders of(HttpHeaders headers) {
+        return headers != null ? new Headers(headers) : null;
+    }
+
+    /**
+     * Returns a copy of the request provided which evaluates preconditions against the headers provided.
+     */
+    static Request of(Request request, HttpHeaders headers) {
+        return request != null ? new Preconditions(request.getMethod(), headers != null ? headers : new Headers()) : null;
+    }
+
+    static SecurityContext of(SecurityContext context) {
+        return context != null ? new Security(context) : null;
+    }
+
+    private static <E> List<E> copy(List<E> list) {
+        return list != null ? Collections.unmodifiableList(new ArrayList<>(list)) : null;
+    }
+
+    private static <K, V> MultivaluedMap<K, V> copy(MultivaluedMap<K, V> map) {
+        if (map == null) {
+            return null;
+        }
+        MultivaluedMap<K, V> ret = new MultivaluedHashMap<>();
+        for (Map.Entry<K, List<V>> entry : map.entrySet()) {
+            ret.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return ret;
+    }
+
+    private static class Uri implements UriInfo {
+        private final String path;
+        private final String encodedPath;
+        private final List<PathSegment> pathSegments;
+        private final List<PathSegment> encodedPathSegments;
+        private final URI requestUri;
+        private final URI absolutePath;
+        private final URI baseUri;
+        private final MultivaluedMap<String, String> pathParameters;
+        private final MultivaluedMap<String, String> encodedPathParameters;
+        private final MultivaluedMap<String, String> queryParameters;
+        private final MultivaluedMap<String, String> encodedQueryParameters;
+        private final List<String> matchedUris;
+        private final List<String> encodedMatchedUris;
+        private final List<Object> matchedResources;
+
+        public Uri(UriInfo uri) {
+            path = uri.getPath();
+            encodedPath = uri.getPath(false);
+            pathSegments = copy(uri.getPathSegments());
+            encodedPathSegments = copy(uri.getPathSegments(false));
+            requestUri = uri.getRequestUri();
+            absolutePath = uri.getAbsolutePath();
+            baseUri = uri.getBaseUri();
+            pathParameters = copy(uri.getPathParameters());
+            encodedPathParameters = copy(uri.getPathParameters(false));
+            queryParameters = copy(uri.getQueryParameters());
+            encodedQueryParameters = copy(uri.getQueryParameters(false));
+            matchedUris = copy(uri.getMatchedURIs());
+            encodedMatchedUris = copy(uri.getMatchedURIs(false));
+            matchedResources = copy(uri.getMatchedResources());
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getPath(boolean decode) {
+            return decode ? path : encodedPath;
+        }
+
+        @Override
+        public List<PathSegment> getPathSegments() {
+            return pathSegments;
+        }
+
+        @Override
+        public List<PathSegment> getPathSegments(boolean decode) {
+            return decode ? pathSegments : encodedPathSegments;
+        }
+
+        @Override
+        public URI getRequestUri() {
+            return requestUri;
+        }
+
+        @Override
+        public UriBuilder getRequestUriBuilder() {
+            return UriBuilder.fromUri(requestUri);
+        }
+
+        @Override
+        public URI getAbsolutePath() {
+            return absolutePath;
+        }
+
+        @Override
+        public UriBuilder getAbsolutePathBuilder() {
+            return UriBuilder.fromUri(absolutePath);
+        }
+
+        @Override
+        public URI getBaseUri() {
+            return baseUri;
+        }
+
+        @Override
+        public UriBuilder getBaseUriBuilder() {
+            return UriBuilder.fromUri(baseUri);
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getPathParameters() {
+            return pathParameters;
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getPathParameters(boolean decode) {
+            return decode ? pathParameters : encodedPathParameters;
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getQueryParameters() {
+            return queryParameters;
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getQueryParameters(boolean decode) {
+            return decode ? queryParameters : encodedQueryParameters;
+        }
+
+        @Override
+        public List<String> getMatchedURIs() {
+            return matchedUris;
+        }
+
+        @Override
+        public List<String> getMatchedURIs(boolean decode) {
+            return decode ? matchedUris : encodedMatchedUris;
+        }
+
+        @Override
+        public List<Object> getMatchedResources() {
+            return matchedResources;
+        }
+
+        @Override
+        public URI resolve(URI uri) {
+            return baseUri.resolve(uri);
+        }
+
+        @Override
+        public URI relativize(URI uri) {
+            return requestUri.relativize(uri.isAbsolute() ? uri : resolve(uri));
+        }
+    }
+
+    private static class Headers implements HttpHeaders {
+        private final MultivaluedMap<String, String> requestHeaders;
+        private final List<MediaType> acceptableMediaTypes;
+        private final List<Locale> acceptableLanguages;
+        private final MediaType mediaType;
+        private final Locale language;
+        private final Map<String, Cookie> cookies;
+        private final Date date;
+        private final int length;
+
+        public Headers() {
+            requestHeaders = new CaseInsensitiveMap();
+            acceptableMediaTypes = Collections.singletonList(MediaType.WILDCARD_TYPE);
+            acceptableLanguages = Collections.singletonList(new Locale("*"));
+            mediaType = null;
+            language = null;
+            cookies = Collections.emptyMap();
+            date = null;
+            length = -1;
+        }
+
+        public Headers(HttpHeaders headers) {
+            requestHeaders = new CaseInsensitiveMap();
+            if (headers.getRequestHeaders() != null) {
+                for (Map.Entry<String, List<String>> entry : headers.getRequestHeaders().entrySet()) {
+                    requestHeaders.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
+            }
+            List<MediaType> acceptableMediaTypes;
+            try {
+                acceptableMediaTypes = new ArrayList<>(headers.getAcceptableMediaTypes());
+            } catch (RuntimeException ex) {
+                acceptableMediaTypes = Collections.singletonList(MediaType.WILDCARD_TYPE);
+            }
+            this.acceptableMediaTypes = Collections.unmodifiableList(acceptableMediaTypes);
+            List<Locale> acceptableLanguages;
+            try {
+                acceptableLanguages = new ArrayList<>(headers.getAcceptableLanguages());
+            } catch (RuntimeException ex) {
+                acceptableLanguages = Collections.singletonList(new Locale("*"));
+            }
+            this.acceptableLanguages = Collections.unmodifiableList(acceptableLanguages);
+            MediaType mediaType;
+            try {
+                mediaType = headers.getMediaType();
+            } catch (RuntimeException ex) {
+                mediaType = null;
+            }
+            this.mediaType = mediaType;
+            Locale language;
+            try {
+                language = headers.getLanguage();
+            } catch (RuntimeException ex) {
+                language = null;
+            }
+            this.language = language;
+            Map<String, Cookie> cookies;
+            try {
+                cookies = new HashMap<>(headers.getCookies());
+            } catch (RuntimeException ex) {
+                cookies = Collections.emptyMap();
+            }
+            this.cookies = Collections.unmodifiableMap(cookies);
+            Date date;
+            try {
+                date = headers.getDate();
+            } catch (RuntimeException ex) {
+                date = null;
+            }
+            this.date = date;
+            int length;
+            try {
+                length = headers.getLength();
+            } catch (RuntimeException ex) {
+                length = -1;
+            }
+            this.length = length;
+        }
+
+        @Override
+        public List<String> getRequestHeader(String name) {
+            return requestHeaders.get(name);
+        }
+
+        @Override
+        public String getHeaderString(String name) {
+            List<String> values = requestHeaders.get(name);
+            if (values == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String value : values) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(value);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public List<MediaType> getAcceptableMediaTypes() {
+            return acceptableMediaTypes;
+        }
+
+        @Override
+        public List<Locale> getAcceptableLanguages() {
+            return acceptableLanguages;
+        }
+
+        @Override
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        @Override
+        public Locale getLanguage() {
+            return language;
+        }
+
+        @Override
+        public Map<String, Cookie> getCookies() {
+            return cookies;
+        }
+
+        @Override
+        public Date getDate() {
+            return date;
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private static class CaseInsensitiveMap extends AbstractMultivaluedMap<String, String> {
+        public CaseInsensitiveMap() {
+            super(new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER));
+        }
+    }
+
+    /**
+     * Evaluates the <code>If-Match</code>, <code>If-None-Match</code>, <code>If-Modified-Since</code> and
+     * <code>If-Unmodified-Since</code> request headers as specified by RFC 7232.
+     */
+    private static class Preconditions implements Request {
+        private static final String HTTP_DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+        private final String method;
+        private final HttpHeaders headers;
+
+        public Preconditions(String method, HttpHeaders headers) {
+            this.method = method;
+            this.headers = headers;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public Variant selectVariant(List<Variant> variants) {
+            throw new UnsupportedOperationException("Variant selection is not supported for a detached request.");
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(EntityTag eTag) {
+            if (eTag == null) {
+                throw new IllegalArgumentException("eTag must not be null.");
+            }
+            String ifMatch = headers.getHeaderString(HttpHeaders.IF_MATCH);
+            if (ifMatch != null && !matches(ifMatch, eTag, true)) {
+                return Response.status(Response.Status.PRECONDITION_FAILED);
+            }
+            String ifNoneMatch = headers.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+            if (ifNoneMatch != null && matches(ifNoneMatch, eTag, false)) {
+                return isSafe() ? Response.notModified(eTag) : Response.status(Response.Status.PRECONDITION_FAILED);
+            }
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified) {
+            if (lastModified == null) {
+                throw new IllegalArgumentException("lastModified must not be null.");
+            }
+            long seconds = lastModified.getTime() / 1000;
+            Date ifUnmodifiedSince = getDate(HttpHeaders.IF_UNMODIFIED_SINCE);
+            if (ifUnmodifiedSince != null && headers.getHeaderString(HttpHeaders.IF_MATCH) == null
+                    && seconds > ifUnmodifiedSince.getTime() / 1000) {
+                return Response.status(Response.Status.PRECONDITION_FAILED);
+            }
+            Date ifModifiedSince = getDate(HttpHeaders.IF_MODIFIED_SINCE);
+            if (ifModifiedSince != null && headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) == null
+                    && isSafe() && seconds <= ifModifiedSince.getTime() / 1000) {
+                return Response.notModified();
+            }
+            return null;
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag eTag) {
+            Response.ResponseBuilder ret = evaluatePreconditions(eTag);
+            return ret != null ? ret : evaluatePreconditions(lastModified);
+        }
+
+        @Override
+        public Response.ResponseBuilder evaluatePreconditions() {
+            return headers.getHeaderString(HttpHeaders.IF_MATCH) != null ? Response.status(Response.Status.PRECONDITION_FAILED) : null;
+        }
+
+        private boolean isSafe() {
+            return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+        }
+
+        /**
+         * Returns whether the comma-separated list of entity tags provided matches the tag provided,
+         * by the strong or weak comparison.
+         */
+        private static boolean matches(String tags, EntityTag eTag, boolean strong) {
+            if (tags.trim().equals("*")) {
+                return true;
+            }
+            // split at the commas outside of quotes
+            for (String value : tags.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)")) {
+                if (value.trim().isEmpty()) {
+                    continue;
+                }
+                EntityTag tag;
+                try {
+                    tag = EntityTag.valueOf(value.trim());
+                } catch (IllegalArgumentException ex) {
+                    continue;
+                }
+                if (tag.getValue().equals(eTag.getValue()) && (!strong || (!tag.isWeak() && !eTag.isWeak()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Date getDate(String header) {
+            String value = headers.getHeaderString(header);
+            if (value == null) {
+                return null;
+            }
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_PATTERN, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return format.parse(value);
+            } catch (ParseException ex) {
+                return null;
+            }
+        }
+    }
+
+    private static class Security implements SecurityContext {
+        private final Principal userPrincipal;
+        private final boolean secure;
+        private final String authenticationScheme;
+
+        public Security(SecurityContext context) {
+            this.userPrincipal = context.getUserPrincipal();
+            this.secure = context.isSecure();
+            this.authenticationScheme = context.getAuthenticationScheme();
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return userPrincipal;
+        }
+
+        /**
+         * The roles of the user cannot be copied; check them before the request is suspended.
+         *
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public boolean isUserInRole(String role) {
+            throw new UnsupportedOperationException("Roles cannot be checked for a detached request: " + role);
+        }
+
+        @Override
+        public boolean isSecure() {
+            return secure;
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return authenticationScheme;
+        }
+    }
+}
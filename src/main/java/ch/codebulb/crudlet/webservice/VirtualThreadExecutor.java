@@ -0,0 +1,155 @@
+package ch.codebulb.crudlet.webservice;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor which runs every task on a new virtual thread (Java 21+), of which at most <code>maxConcurrency</code> execute
+ * at the same time while at most <code>queueSize</code> further tasks wait; any further task is rejected with a
+ * {@link RejectedExecutionException}, as by the executors created by {@link AsyncCrudResource#createExecutor(String, int, int)}.<p/>
+ *
+ * A waiting task parks its virtual thread rather than blocking an OS thread. The virtual threads are created by
+ * reflection, so that this library still runs on (and compiles for) Java 7.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final boolean AVAILABLE = isSupported();
+
+    private final ExecutorService threads;
+    private final Semaphore admitted;
+    private final Semaphore running;
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread named after the name provided.
+     *
+     * @throws UnsupportedOperationException if the Java runtime does not support virtual threads
+     */
+    public VirtualThreadExecutor(String name, int maxConcurrency, int queueSize) throws UnsupportedOperationException {
+        this(newVirtualThreadPerTaskExecutor(name), maxConcurrency, queueSize);
+    }
+
+    /**
+     * Creates an executor which limits the tasks executed by the executor provided, e.g. a container-managed executor.
+     * A waiting task occupies a thread of the executor provided.
+     */
+    VirtualThreadExecutor(ExecutorService threads, int maxConcurrency, int queueSize) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive, but was: " + maxConcurrency);
+        }
+        this.threads = threads;
+        this.admitted = new Semaphore(maxConcurrency + Math.max(queueSize, 0));
+        this.running = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Returns whether the Java runtime supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (!admitted.tryAcquire()) {
+            throw new RejectedExecutionException("Too many tasks waiting for execution.");
+        }
+        try {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        running.acquire();
+                    } catch (InterruptedException ex) {
+                        admitted.release();
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        command.run();
+                    } finally {
+                        running.release();
+                        admitted.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            admitted.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Returns whether a virtual thread can actually be created and started: on Java 19 and 20,
+     * <code>Thread.ofVirtual()</code> exists, but throws unless preview features are enabled.
+     */
+    private static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            createVirtualThreadFactory("crudlet-probe").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    // nothing to do
+                }
+            }).start();
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Invokes <code>Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory())</code>.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String name) throws UnsupportedOperationException {
+        if (!AVAILABLE) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, but the Java version is: "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, createVirtualThreadFactory(name));
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("Cannot create virtual threads.", ex);
+        }
+    }
+
+    /**
+     * Invokes <code>Thread.ofVirtual().name(name + "-", 1).factory()</code>.
+     */
+    private static ThreadFactory createVirtualThreadFactory(String name) throws ReflectiveOperationException {
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+        return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    }
+}
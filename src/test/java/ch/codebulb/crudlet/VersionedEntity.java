@@ -0,0 +1,36 @@
+package ch.codebulb.crudlet;
+
+import javax.persistence.ManyToOne;
+import javax.persistence.Version;
+
+public class VersionedEntity extends SimpleEntity {
+    private String name;
+    @Version
+    private Long version;
+    @ManyToOne
+    private SimpleEntity parent;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public SimpleEntity getParent() {
+        return parent;
+    }
+
+    public void setParent(SimpleEntity parent) {
+        this.parent = parent;
+    }
+}
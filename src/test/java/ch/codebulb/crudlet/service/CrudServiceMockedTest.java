@@ -0,0 +1,322 @@
+package ch.codebulb.crudlet.service;
+
+import ch.codebulb.crudlet.SimpleEntity;
+import ch.codebulb.crudlet.VersionedEntity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.OptimisticLockException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link CrudServiceMocked} class.
+ */
+public class CrudServiceMockedTest {
+    private SimpleCrudServiceMocked instance;
+    
+    @Before
+    public void init() {
+        instance = new SimpleCrudServiceMocked();
+        for (int i = 0; i < 5; i++) {
+            instance.save(new SimpleEntity());
+        }
+    }
+    
+    @Test
+    public void testFindByPaged() {
+        List<SimpleEntity> page = instance.findBy(null, 1, 2);
+        assertEquals(2, page.size());
+        assertEquals(Long.valueOf(2), page.get(0).getId());
+        assertEquals(Long.valueOf(3), page.get(1).getId());
+        
+        assertEquals(1, instance.findBy(null, 4, 2).size());
+        assertEquals(0, instance.findBy(null, 10, 2).size());
+    }
+    
+    @Test
+    public void testFindAfter() {
+        List<SimpleEntity> page = instance.findAfter(null, 3l, 10);
+        assertEquals(2, page.size());
+        assertEquals(Long.valueOf(4), page.get(0).getId());
+    }
+    
+    @Test
+    public void testIterateBy() {
+        List<Long> ids = new ArrayList<>();
+        Iterator<SimpleEntity> it = instance.iterateBy(null, 1l, 2);
+        while (it.hasNext()) {
+            ids.add(it.next().getId());
+        }
+        assertEquals(4, ids.size());
+        assertEquals(Long.valueOf(2), ids.get(0));
+        assertEquals(Long.valueOf(5), ids.get(3));
+        assertFalse(it.hasNext());
+    }
+    
+    @Test
+    public void testFindBySorted() {
+        List<SimpleEntity> page = instance.findBy(null, Arrays.asList(new SortOrder("id", false)), 1, 2);
+        assertEquals(2, page.size());
+        assertEquals(Long.valueOf(4), page.get(0).getId());
+        assertEquals(Long.valueOf(3), page.get(1).getId());
+    }
+    
+    @Test
+    public void testFindBySortedByAttributes() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        service.save(createVersioned("b", 1l, null));
+        service.save(createVersioned("a", 2l, null));
+        service.save(createVersioned("b", 3l, null));
+        service.save(createVersioned(null, 4l, null));
+        List<VersionedEntity> page = service.findBy(null, Arrays.asList(new SortOrder("name", true), new SortOrder("version", false)), 0, -1);
+        assertEquals(Arrays.asList(4l, 2l, 3l, 1l), getIds(page));
+        
+        List<Map<String, Object>> fields = service.findFieldsBy(null, Arrays.asList(new SortOrder("name", false)), Arrays.asList("name"), 0, 1);
+        assertEquals(1, fields.size());
+        assertEquals("b", fields.get(0).get("name"));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindBySortedUnknownAttribute() {
+        instance.findBy(null, Arrays.asList(new SortOrder("name", true)), 0, -1);
+    }
+    
+    @Test
+    public void testFindFieldsBy() {
+        List<Map<String, Object>> page = instance.findFieldsBy(null, null, Arrays.asList("id"), 3, -1);
+        assertEquals(2, page.size());
+        assertEquals(1, page.get(0).size());
+        assertEquals(4l, page.get(0).get("id"));
+        assertNull(instance.findFieldsById(6l, Arrays.asList("id")));
+    }
+    
+    @Test
+    public void testGetMetadata() {
+        EntityMetadata metadata = instance.getMetadata();
+        assertEquals(1, metadata.getAttributes().size());
+        EntityMetadata.AttributeMetadata id = metadata.getAttribute("id");
+        assertEquals(Long.class, id.getJavaType());
+        assertTrue(id.isIndexed());
+        assertTrue(id.isSortable());
+        assertFalse(id.isAssociation());
+        assertNull(metadata.getAttribute("name"));
+    }
+    
+    @Test
+    public void testSaveConcurrent() throws Exception {
+        final int threads = 8;
+        final int saves = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws InterruptedException {
+                    start.await();
+                    List<Long> ret = new ArrayList<>();
+                    for (int j = 0; j < saves; j++) {
+                        ret.add(instance.save(new SimpleEntity()).getId());
+                        // concurrent readers
+                        instance.findBy(null, 0, 10);
+                        instance.countAll();
+                    }
+                    return ret;
+                }
+            }));
+        }
+        start.countDown();
+        Set<Long> ids = new HashSet<>();
+        for (Future<List<Long>> result : results) {
+            ids.addAll(result.get(1, TimeUnit.MINUTES));
+        }
+        executor.shutdown();
+        
+        assertEquals(threads * saves, ids.size());
+        assertEquals(5 + threads * saves, instance.countAll());
+        List<SimpleEntity> all = instance.findBy(null, 0, -1);
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), all.get(i).getId());
+        }
+    }
+    
+    @Test
+    public void testPatchConcurrent() throws Exception {
+        final CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        VersionedEntity entity = new VersionedEntity();
+        entity.setVersion(0l);
+        final Long id = service.save(entity).getId();
+        
+        final int threads = 8;
+        final int patches = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws InterruptedException {
+                    start.await();
+                    int ret = 0;
+                    for (int j = 0; j < patches; j++) {
+                        Long version = service.findById(id).getVersion();
+                        if (service.patch(id, Collections.<String, Object>singletonMap("name", "a"), version)) {
+                            ret++;
+                        }
+                    }
+                    return ret;
+                }
+            }));
+        }
+        start.countDown();
+        int succeeded = 0;
+        for (Future<Integer> result : results) {
+            succeeded += result.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        
+        // no update is lost
+        assertTrue(succeeded > 0);
+        assertEquals(Long.valueOf(succeeded), service.findById(id).getVersion());
+    }
+    
+    @Test
+    public void testPatch() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        Long id = service.save(createVersioned("a", 0l, null)).getId();
+        VersionedEntity read = service.findById(id);
+        
+        assertTrue(service.patch(id, Collections.<String, Object>singletonMap("name", "b"), 0l));
+        assertEquals("b", service.findById(id).getName());
+        assertEquals(Long.valueOf(1), service.findById(id).getVersion());
+        // the entity read before is not modified
+        assertEquals("a", read.getName());
+        assertEquals(Long.valueOf(0), read.getVersion());
+        assertFalse(service.patch(id, Collections.<String, Object>singletonMap("name", "c"), 0l));
+    }
+    
+    @Test
+    public void testNullId() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        assertNull(service.findById(null));
+        service.delete(null);
+        assertFalse(service.patch(null, Collections.<String, Object>singletonMap("name", "a"), 0l));
+        try {
+            service.saveIfVersion(createVersioned("a", 0l, null), 0l);
+            fail();
+        } catch (OptimisticLockException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testFindByFiltered() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        SimpleEntity parent = new SimpleEntity();
+        parent.setId(7l);
+        service.save(createVersioned("Alice", 1l, parent));
+        service.save(createVersioned("Bob", 2l, null));
+        service.save(createVersioned("Carol", 3l, parent));
+        service.save(createVersioned(null, 4l, null));
+        
+        assertEquals(Arrays.asList(2l), getIds(service.findBy(Collections.singletonMap("name", "Bob"))));
+        assertEquals(Arrays.asList(1l, 2l), getIds(service.findBy(Collections.singletonMap("version", "<2"))));
+        assertEquals(Arrays.asList(3l, 4l), getIds(service.findBy(Collections.singletonMap("version", ">3"))));
+        assertEquals(Arrays.asList(2l, 3l), getIds(service.findBy(Collections.singletonMap("version", "[2,3]"))));
+        assertEquals(Arrays.asList(1l, 3l), getIds(service.findBy(Collections.singletonMap("name", "(Alice,Carol,Dave)"))));
+        assertEquals(Arrays.asList(1l, 3l), getIds(service.findBy(Collections.singletonMap("parentId", "7"))));
+        // null matches no filter
+        assertEquals(Arrays.asList(1l, 2l, 3l), getIds(service.findBy(Collections.singletonMap("name", "~%"))));
+        assertEquals(Arrays.asList(2l), getIds(service.findBy(Collections.singletonMap("name", "~_o%"))));
+        // special characters of regular expressions are literals
+        assertEquals(0, service.findBy(Collections.singletonMap("name", "~A.*")).size());
+        
+        Map<String, String> predicates = new LinkedHashMap<>();
+        predicates.put("name", "~%o%");
+        predicates.put("version", ">3");
+        assertEquals(Arrays.asList(3l), getIds(service.findBy(predicates)));
+    }
+    
+    @Test
+    public void testFindByFilteredPaged() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        for (long i = 1; i <= 10; i++) {
+            service.save(createVersioned(i % 2 == 0 ? "even" : "odd", i, null));
+        }
+        Map<String, String> predicates = Collections.singletonMap("name", "even");
+        
+        assertEquals(Arrays.asList(4l, 6l), getIds(service.findBy(predicates, 1, 2)));
+        assertEquals(Arrays.asList(8l, 6l), getIds(service.findBy(predicates, Arrays.asList(new SortOrder("version", false)), 1, 2)));
+        assertEquals(Arrays.asList(8l, 10l), getIds(service.findAfter(predicates, 6l, 5)));
+        assertEquals(5, service.countBy(predicates));
+        assertEquals(10, service.countBy(null));
+    }
+    
+    @Test
+    public void testDeleteBy() {
+        CrudServiceMocked<VersionedEntity> service = createVersionedService();
+        for (long i = 1; i <= 10; i++) {
+            service.save(createVersioned(null, i, null));
+        }
+        
+        service.deleteBy(Collections.singletonMap("version", ">6"));
+        assertEquals(5, service.countAll());
+        assertEquals(0, service.countBy(Collections.singletonMap("version", ">6")));
+        
+        service.deleteAll();
+        assertEquals(0, service.countAll());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindByUnknownAttribute() {
+        instance.findBy(Collections.singletonMap("name", "a"));
+    }
+    
+    private static CrudServiceMocked<VersionedEntity> createVersionedService() {
+        return new CrudServiceMocked<VersionedEntity>() {
+            @Override
+            public VersionedEntity create() {
+                return new VersionedEntity();
+            }
+
+            @Override
+            public Class<VersionedEntity> getModelClass() {
+                return VersionedEntity.class;
+            }
+        };
+    }
+    
+    private static VersionedEntity createVersioned(String name, Long version, SimpleEntity parent) {
+        VersionedEntity ret = new VersionedEntity();
+        ret.setName(name);
+        ret.setVersion(version);
+        ret.setParent(parent);
+        return ret;
+    }
+    
+    private static List<Long> getIds(List<? extends SimpleEntity> entities) {
+        List<Long> ret = new ArrayList<>();
+        for (SimpleEntity entity : entities) {
+            ret.add(entity.getId());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,733 @@
+package ch.codebulb.crudlet.service;
+
+import ch.codebulb.crudlet.SimpleEntity;
+import ch.codebulb.crudlet.VersionedEntity;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Expression;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.validation.Validator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test for {@link CrudService} class.<p/>
+ * 
+ * <b>Note:</b> This does explicitly <i>not</i> test actual persistence functionality, but mocks the {@link EntityManager}.
+ */
+public class CrudServiceTest {
+    private SimpleCrudService instance;
+    private EntityManager em;
+    
+    @Before
+    public void init() {
+        em = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        instance = new SimpleCrudService(em);
+        
+        when(em.merge(any(SimpleEntity.class))).thenAnswer(new Answer<SimpleEntity>() {
+            @Override
+            public SimpleEntity answer(InvocationOnMock invocation) {
+                return (SimpleEntity) invocation.getArguments()[0];
+            }
+        });
+    }
+    
+    @Test
+    public void testSaveFlushImmediate() {
+        instance.save(createEntity(1l));
+        verify(em).merge(any(SimpleEntity.class));
+        verify(em).flush();
+    }
+    
+    @Test
+    public void testSaveFlushOnCommit() {
+        instance.setFlushStrategy(CrudService.FlushStrategy.ON_COMMIT);
+        instance.save(createEntity(1l));
+        instance.delete(1l);
+        verify(em, never()).flush();
+    }
+    
+    @Test
+    public void testSaveFlushOnCommitGeneratedIdRequired() {
+        instance.setFlushStrategy(CrudService.FlushStrategy.ON_COMMIT);
+        // id is not generated on persist
+        instance.save(new SimpleEntity());
+        verify(em).persist(any(SimpleEntity.class));
+        verify(em).flush();
+    }
+    
+    @Test
+    public void testSaveFlushOnCommitGeneratedIdAvailable() {
+        instance.setFlushStrategy(CrudService.FlushStrategy.ON_COMMIT);
+        // id is generated on persist
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((SimpleEntity) invocation.getArguments()[0]).setId(1l);
+                return null;
+            }
+        }).when(em).persist(any(SimpleEntity.class));
+        instance.save(new SimpleEntity());
+        verify(em, never()).flush();
+    }
+    
+    @Test
+    public void testSaveFlushEveryN() {
+        instance.setFlushStrategy(CrudService.FlushStrategy.EVERY_N);
+        instance.save(createEntity(1l));
+        verify(em, never()).flush();
+        instance.save(createEntity(2l));
+        verify(em, times(1)).flush();
+        instance.delete(2l);
+        verify(em, times(1)).flush();
+    }
+    
+    @Test
+    public void testDeleteDirect() {
+        instance.delete(1l);
+        verify(em).createQuery(any(CriteriaDelete.class));
+        verify(em, never()).getReference(SimpleEntity.class, 1l);
+        verify(em, never()).remove(any());
+    }
+    
+    @Test
+    public void testDeleteByIdsDirect() {
+        instance.deleteByIds(Arrays.asList(1l, 2l, 3l));
+        verify(em, times(1)).createQuery(any(CriteriaDelete.class));
+        verify(em, never()).remove(any());
+        verify(em, times(1)).flush();
+    }
+    
+    @Test
+    public void testDeleteDirectDisabled() {
+        instance.setDirectDeleteEnabled(false);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        when(em.find(SimpleEntity.class, 2l)).thenReturn(createEntity(2l));
+        instance.deleteByIds(Arrays.asList(1l, 2l));
+        verify(em, never()).createQuery(any(CriteriaDelete.class));
+        verify(em).find(SimpleEntity.class, 1l);
+        verify(em).find(SimpleEntity.class, 2l);
+        verify(em, times(2)).remove(any());
+    }
+    
+    @Test
+    public void testDeleteDirectDisabledMissing() {
+        instance.setDirectDeleteEnabled(false);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(null);
+        instance.delete(1l);
+        verify(em, never()).remove(any());
+    }
+    
+    @Test
+    public void testExecuteBatchDeleteMissing() {
+        // deleting a missing entity by a direct DELETE statement does nothing
+        when(em.createQuery(any(CriteriaDelete.class)).executeUpdate()).thenReturn(0);
+        List<SimpleEntity> ret = instance.executeBatch(Arrays.asList(BatchOperation.<SimpleEntity>delete(3l)));
+        assertEquals(1, ret.size());
+        assertNull(ret.get(0));
+        verify(em, never()).getReference(SimpleEntity.class, 3l);
+        verify(em, never()).remove(any());
+        
+        instance.setDirectDeleteEnabled(false);
+        when(em.find(SimpleEntity.class, 3l)).thenReturn(null);
+        instance.executeBatch(Arrays.asList(BatchOperation.<SimpleEntity>delete(3l)));
+        verify(em, never()).remove(any());
+    }
+    
+    @Test
+    public void testExecuteBatchFailed() {
+        TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+        when(registry.getTransactionKey()).thenReturn(new Object());
+        instance.setTransactionSynchronizationRegistry(registry);
+        SimpleEntity updated = createEntity(2l);
+        when(em.merge(updated)).thenThrow(new OptimisticLockException());
+        try {
+            instance.executeBatch(Arrays.asList(BatchOperation.create(new SimpleEntity()), BatchOperation.update(updated)));
+            fail();
+        } catch (BatchOperation.FailedException ex) {
+            assertEquals(1, ex.getIndex());
+            assertTrue(ex.getCause() instanceof OptimisticLockException);
+        }
+        verify(registry).setRollbackOnly();
+    }
+    
+    @Test
+    public void testFindByQueryPlanCache() {
+        instance.findBy(Collections.singletonMap("name", "a"));
+        instance.findBy(Collections.singletonMap("name", "b"));
+        instance.findBy(Collections.singletonMap("name", "~c%"));
+        // one named query per filter shape
+        verify(em.getEntityManagerFactory(), times(2)).addNamedQuery(anyString(), any(Query.class));
+        verify(em, times(3)).createNamedQuery(anyString(), eq(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testFindByQueryPlanCacheLimit() {
+        instance.setMaxNamedQueries(1);
+        instance.findBy(Collections.singletonMap("name", "a"));
+        instance.findBy(Collections.singletonMap("name", "~c%"));
+        instance.findBy(Collections.singletonMap("name", "b"));
+        // further shapes are not registered, but built on every execution
+        verify(em.getEntityManagerFactory(), times(1)).addNamedQuery(anyString(), any(Query.class));
+        verify(em, times(2)).createNamedQuery(anyString(), eq(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testFindFieldsByQueryPlanCacheNormalized() {
+        instance.findFieldsBy(null, null, Arrays.asList("name", "city"), 0, 10);
+        instance.findFieldsBy(null, null, Arrays.asList("city", "name"), 0, 10);
+        verify(em.getEntityManagerFactory(), times(1)).addNamedQuery(anyString(), any(Query.class));
+    }
+    
+    @Test
+    public void testFindByQueryPlanCacheDisabled() {
+        instance.setQueryPlanCacheEnabled(false);
+        instance.findBy(Collections.singletonMap("name", "a"));
+        verify(em.getEntityManagerFactory(), never()).addNamedQuery(anyString(), any(Query.class));
+        verify(em, never()).createNamedQuery(anyString(), eq(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testConvertDate() {
+        assertEquals(new Date(1577836800000l), QueryValues.convert("2020-01-01T00:00:00Z", Date.class));
+        assertEquals(new Date(1577836800000l), QueryValues.convert("2020-01-01T00:00:00.000Z", Date.class));
+        assertEquals(new Date(1577833200000l), QueryValues.convert("2020-01-01T00:00:00+01:00", Date.class));
+        assertEquals(new Date(1577833200000l), QueryValues.convert("2020-01-01T00:00:00.000+0100", Date.class));
+        assertEquals(new Date(1577840400000l), QueryValues.convert("2020-01-01T00:00:00-01:00", Date.class));
+        assertEquals(new Date(1577836800000l), QueryValues.convert("1577836800000", Date.class));
+        assertEquals(new java.sql.Timestamp(1577836800000l), QueryValues.convert("2020-01-01T00:00:00Z", java.sql.Timestamp.class));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testConvertDateIllegal() {
+        QueryValues.convert("2020-01-01T00:00:00+1", Date.class);
+    }
+    
+    @Test
+    public void testFindByAttributeType() {
+        Attribute attribute = mock(Attribute.class);
+        doReturn("count").when(attribute).getName();
+        doReturn(int.class).when(attribute).getJavaType();
+        EntityType<SimpleEntity> entityType = em.getMetamodel().entity(SimpleEntity.class);
+        doReturn(Collections.singleton(attribute)).when(entityType).getAttributes();
+        instance.findBy(Collections.singletonMap("count", "<5"));
+        // the value is bound as a parameter of the attribute's type
+        verify(em.getCriteriaBuilder()).parameter(Integer.class, "filter0");
+        verify(em.createNamedQuery(anyString(), eq(SimpleEntity.class))).setParameter("filter0", 5);
+    }
+    
+    @Test
+    public void testGetMetadata() {
+        EntityMetadata metadata = instance.getMetadata();
+        assertSame(metadata, instance.getMetadata());
+        
+        EntityManager otherEm = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        SimpleCrudService other = new SimpleCrudService(otherEm);
+        EntityMetadata otherMetadata = other.getMetadata();
+        assertNotSame(metadata, otherMetadata);
+        // resolved only once per metamodel, regardless of the metamodel looked up in between
+        assertSame(metadata, instance.getMetadata());
+        assertSame(otherMetadata, other.getMetadata());
+    }
+    
+    @Test
+    public void testFindByIn() {
+        instance.findBy(Collections.singletonMap("name", QueryPredicate.joinList(Arrays.asList("a", "b,c"))));
+        // a single list parameter
+        verify(em.getCriteriaBuilder()).parameter(Collection.class, "filter0");
+        verify(em.createNamedQuery(anyString(), eq(SimpleEntity.class))).setParameter("filter0", Arrays.asList("a", "b,c"));
+    }
+    
+    @Test
+    public void testFindByBetween() {
+        instance.findBy(Collections.singletonMap("amount", "[1,5]"));
+        verify(em.getCriteriaBuilder()).parameter(Long.class, "filter0");
+        verify(em.getCriteriaBuilder()).parameter(Long.class, "filter0_1");
+        verify(em.createNamedQuery(anyString(), eq(SimpleEntity.class))).setParameter("filter0", 1l);
+        verify(em.createNamedQuery(anyString(), eq(SimpleEntity.class))).setParameter("filter0_1", 5l);
+    }
+    
+    @Test
+    public void testFindByEscaped() {
+        instance.findBy(Collections.singletonMap("name", "\\(draft)"));
+        verify(em.getCriteriaBuilder()).parameter(String.class, "filter0");
+        verify(em.createNamedQuery(anyString(), eq(SimpleEntity.class))).setParameter("filter0", "(draft)");
+        
+        QueryFilter filter = QueryFilter.parse("name", "\\[1,2]");
+        assertEquals(QueryPredicate.EQ, filter.getPredicate());
+        assertEquals("[1,2]", filter.getValue());
+        filter = QueryFilter.parse("customerId", "\\1");
+        assertEquals(QueryPredicate.ID, filter.getPredicate());
+        assertEquals("1", filter.getValue());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindByBetweenIllegal() {
+        instance.findBy(Collections.singletonMap("amount", "[1]"));
+    }
+    
+    @Test
+    public void testFindBySorted() {
+        instance.findBy(null, Arrays.asList(new SortOrder("name", false)), 0, 10);
+        instance.findBy(null, Arrays.asList(new SortOrder("name", false)), 10, 10);
+        verify(em.getCriteriaBuilder()).desc(any(Expression.class));
+        // ordered by id as well for consistent pages
+        verify(em.getCriteriaBuilder()).asc(any(Expression.class));
+        verify(em.getEntityManagerFactory(), times(1)).addNamedQuery(anyString(), any(Query.class));
+    }
+    
+    @Test
+    public void testFindFieldsBy() {
+        instance.findFieldsBy(null, null, Arrays.asList("name"), 0, 10);
+        verify(em.getCriteriaBuilder()).createTupleQuery();
+        verify(em).createNamedQuery(anyString(), eq(Tuple.class));
+        verify(em, never()).createNamedQuery(anyString(), eq(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testFindByIdCached() {
+        ServiceCache<Long, SimpleEntity> cache = new ServiceCache<>(10, 0);
+        instance.setEntityCache(cache);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        
+        when(em.find(SimpleEntity.class, 2l)).thenReturn(null);
+        
+        SimpleEntity entity = instance.findById(1l);
+        assertSame(entity, instance.findById(1l));
+        verify(em, times(1)).find(SimpleEntity.class, 1l);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        
+        // not found is not cached
+        assertNull(instance.findById(2l));
+        assertNull(instance.findById(2l));
+        verify(em, times(2)).find(SimpleEntity.class, 2l);
+    }
+    
+    @Test
+    public void testFindByIdCachedEviction() {
+        final long[] now = {0};
+        ServiceCache<Long, SimpleEntity> cache = new ServiceCache<Long, SimpleEntity>(1, 1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        instance.setEntityCache(cache);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        when(em.find(SimpleEntity.class, 2l)).thenReturn(createEntity(2l));
+        
+        instance.findById(1l);
+        // evicts 1 as the cache is full
+        instance.findById(2l);
+        // evicts 2
+        instance.findById(1l);
+        verify(em, times(2)).find(SimpleEntity.class, 1l);
+        assertEquals(2, cache.getEvictionCount());
+        
+        // expires
+        now[0] = 1000;
+        instance.findById(1l);
+        verify(em, times(3)).find(SimpleEntity.class, 1l);
+        assertEquals(3, cache.getEvictionCount());
+        assertEquals(0, cache.getHitCount());
+    }
+    
+    @Test
+    public void testFindByIdCachedInvalidation() {
+        ServiceCache<Long, SimpleEntity> cache = new ServiceCache<>(10, 0);
+        instance.setEntityCache(cache);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        when(em.find(SimpleEntity.class, 2l)).thenReturn(createEntity(2l));
+        
+        instance.findById(1l);
+        instance.findById(2l);
+        instance.save(createEntity(1l));
+        assertEquals(1, cache.size());
+        instance.findById(1l);
+        instance.delete(1l);
+        assertEquals(1, cache.size());
+        instance.findById(1l);
+        instance.deleteAll();
+        assertEquals(0, cache.size());
+        verify(em, times(3)).find(SimpleEntity.class, 1l);
+    }
+    
+    @Test
+    public void testFindByIdCachedInvalidationAfterCommit() {
+        final ServiceCache<Long, SimpleEntity> cache = new ServiceCache<>(10, 0);
+        instance.setEntityCache(cache);
+        TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+        when(registry.getTransactionKey()).thenReturn(new Object());
+        instance.setTransactionSynchronizationRegistry(registry);
+        final SimpleEntity committed = createEntity(1l);
+        // a concurrent read which started before the write loads the entity as last committed
+        when(em.find(SimpleEntity.class, 1l)).thenAnswer(new Answer<SimpleEntity>() {
+            @Override
+            public SimpleEntity answer(InvocationOnMock invocation) {
+                instance.save(createEntity(1l));
+                return committed;
+            }
+        });
+
+        when(em.isJoinedToTransaction()).thenReturn(true);
+        instance.findById(1l);
+        // not cached within a transaction
+        assertEquals(0, cache.size());
+        when(em.isJoinedToTransaction()).thenReturn(false);
+        instance.findById(1l);
+        // not cached as the write invalidated the cache during the load
+        assertEquals(0, cache.size());
+
+        // a concurrent read between the write and the commit
+        cache.put(1l, committed);
+        ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(registry).registerInterposedSynchronization(synchronization.capture());
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFindByCached() {
+        ServiceCache<List<Object>, Object> cache = new ServiceCache<>(10, 0);
+        instance.setQueryCache(cache);
+        Map<String, String> predicates = new LinkedHashMap<>();
+        predicates.put("name", "a");
+        predicates.put("city", "b");
+        Map<String, String> reorderedPredicates = new LinkedHashMap<>();
+        reorderedPredicates.put("city", "b");
+        reorderedPredicates.put("name", "a");
+        
+        instance.findBy(predicates, null, 0, 10);
+        instance.findBy(reorderedPredicates, null, 0, 10);
+        assertEquals(1, cache.getHitCount());
+        // different page
+        instance.findBy(predicates, null, 10, 10);
+        assertEquals(2, cache.getMissCount());
+        
+        instance.save(createEntity(1l));
+        assertEquals(0, cache.size());
+        instance.findBy(predicates, null, 0, 10);
+        verify(em, times(3)).createNamedQuery(anyString(), eq(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testFindByNotCachedModifiable() {
+        TypedQuery<SimpleEntity> query = mock(TypedQuery.class, RETURNS_DEEP_STUBS);
+        when(query.setFirstResult(anyInt())).thenReturn(query);
+        when(query.getResultList()).thenReturn(new ArrayList<>(Arrays.asList(createEntity(1l))));
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(SimpleEntity.class));
+
+        List<SimpleEntity> ret = instance.findBy(null, null, 0, 10);
+        ret.add(createEntity(2l));
+        assertEquals(2, ret.size());
+    }
+
+    @Test
+    public void testCountByCachedConcurrentWrite() {
+        ServiceCache<List<Object>, Object> cache = new ServiceCache<>(10, 0);
+        instance.setQueryCache(cache);
+        TypedQuery<Long> query = mock(TypedQuery.class);
+        // a write during the query
+        when(query.getSingleResult()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                instance.delete(1l);
+                return 3l;
+            }
+        });
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(Long.class));
+
+        assertEquals(3, instance.countBy(Collections.singletonMap("name", "a")));
+        // the result may be stale, thus it is not cached
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCountByCached() {
+        ServiceCache<List<Object>, Object> cache = new ServiceCache<>(10, 0);
+        instance.setQueryCache(cache);
+        TypedQuery<Long> query = mock(TypedQuery.class);
+        when(query.getSingleResult()).thenReturn(3l);
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(Long.class));
+        
+        assertEquals(3, instance.countBy(Collections.singletonMap("name", "a")));
+        assertEquals(3, instance.countBy(Collections.singletonMap("name", "a")));
+        verify(query, times(1)).getSingleResult();
+        
+        instance.delete(1l);
+        assertEquals(3, instance.countBy(Collections.singletonMap("name", "a")));
+        verify(query, times(2)).getSingleResult();
+    }
+    
+    @Test
+    public void testFindByReadOnly() {
+        instance.setReadOnlyQueryEnabled(true);
+        TypedQuery<SimpleEntity> query = mock(TypedQuery.class);
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(SimpleEntity.class));
+        
+        instance.findBy(Collections.singletonMap("name", "a"));
+        verify(query).setHint("org.hibernate.readOnly", true);
+        verify(query).setFlushMode(FlushModeType.COMMIT);
+    }
+    
+    @Test
+    public void testFindByReadOnlyInTransaction() {
+        instance.setReadOnlyQueryEnabled(true);
+        when(em.isJoinedToTransaction()).thenReturn(true);
+        TypedQuery<SimpleEntity> query = mock(TypedQuery.class);
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(SimpleEntity.class));
+        
+        instance.findBy(Collections.singletonMap("name", "a"));
+        // the caller may modify the entities
+        verify(query, never()).setHint(eq("org.hibernate.readOnly"), any());
+        verify(query, never()).setFlushMode(any(FlushModeType.class));
+    }
+    
+    @Test
+    public void testFindByIdReadOnly() {
+        instance.setReadOnlyQueryEnabled(true);
+        when(em.find(eq(SimpleEntity.class), eq(1l), any(Map.class))).thenReturn(createEntity(1l));
+        
+        assertEquals(Long.valueOf(1), instance.findById(1l).getId());
+        ArgumentCaptor<Map> hints = ArgumentCaptor.forClass(Map.class);
+        verify(em).find(eq(SimpleEntity.class), eq(1l), hints.capture());
+        assertEquals(true, hints.getValue().get("org.hibernate.readOnly"));
+    }
+    
+    @Test
+    public void testFindByReadEm() {
+        EntityManager readEm = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        instance.setReadEm(readEm);
+        TypedQuery<SimpleEntity> query = mock(TypedQuery.class);
+        doReturn(query).when(readEm).createNamedQuery(anyString(), eq(SimpleEntity.class));
+        when(readEm.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        
+        instance.findBy(Collections.singletonMap("name", "a"));
+        assertEquals(Long.valueOf(1), instance.findById(1l).getId());
+        verify(query).getResultList();
+        verify(em, never()).createNamedQuery(anyString(), eq(SimpleEntity.class));
+        verify(em, never()).find(SimpleEntity.class, 1l);
+    }
+    
+    @Test
+    public void testFindByReadEmAfterWrite() throws InterruptedException {
+        EntityManager readEm = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        instance.setReadEm(readEm);
+        instance.setReadYourWritesMillis(200);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        when(readEm.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        
+        instance.save(createEntity(1l));
+        // read your writes
+        instance.findById(1l);
+        verify(em).find(SimpleEntity.class, 1l);
+        verify(readEm, never()).find(SimpleEntity.class, 1l);
+        
+        Thread.sleep(250);
+        instance.findById(1l);
+        verify(readEm).find(SimpleEntity.class, 1l);
+    }
+    
+    @Test
+    public void testFindByReadEmAfterWriteOfOtherInstance() {
+        EntityManager readEm = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        instance.setReadEm(readEm);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        
+        // e.g. a @Dependent service injected into another bean
+        new SimpleCrudService(em).save(createEntity(1l));
+        instance.findById(1l);
+        verify(em).find(SimpleEntity.class, 1l);
+        verify(readEm, never()).find(SimpleEntity.class, 1l);
+    }
+    
+    @Test
+    public void testFindByReadEmInTransaction() {
+        EntityManager readEm = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+        instance.setReadEm(readEm);
+        when(em.isJoinedToTransaction()).thenReturn(true);
+        TypedQuery<Long> query = mock(TypedQuery.class);
+        when(query.getSingleResult()).thenReturn(3l);
+        doReturn(query).when(em).createNamedQuery(anyString(), eq(Long.class));
+        
+        instance.countBy(Collections.singletonMap("name", "a"));
+        verify(em).createNamedQuery(anyString(), eq(Long.class));
+        verify(readEm, never()).createNamedQuery(anyString(), eq(Long.class));
+    }
+    
+    @Test
+    public void testSaveIfVersion() throws NoSuchFieldException {
+        mockVersionAttribute();
+        Query query = mock(Query.class);
+        when(query.executeUpdate()).thenReturn(1);
+        doReturn(query).when(em).createQuery(any(CriteriaUpdate.class));
+        VersionedEntity entity = new VersionedEntity();
+        entity.setId(1l);
+        
+        assertSame(entity, instance.saveIfVersion(entity, 3l));
+        assertEquals(Long.valueOf(4), entity.getVersion());
+        // a single UPDATE statement; no merge
+        verify(query).executeUpdate();
+        verify(em.getCriteriaBuilder()).equal(any(Expression.class), eq(3l));
+        verify(em, never()).merge(any(SimpleEntity.class));
+        verify(em, never()).find(eq(SimpleEntity.class), any(Long.class));
+    }
+    
+    @Test(expected = OptimisticLockException.class)
+    public void testSaveIfVersionConflict() throws NoSuchFieldException {
+        mockVersionAttribute();
+        Query query = mock(Query.class);
+        when(query.executeUpdate()).thenReturn(0);
+        doReturn(query).when(em).createQuery(any(CriteriaUpdate.class));
+        VersionedEntity entity = new VersionedEntity();
+        entity.setId(1l);
+        
+        instance.saveIfVersion(entity, 3l);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testSaveIfVersionUnversioned() {
+        instance.setValidator(mock(Validator.class));
+        instance.saveIfVersion(createEntity(1l), 3l);
+    }
+    
+    @Test
+    public void testPatch() throws NoSuchFieldException {
+        Attribute name = mock(Attribute.class);
+        doReturn("name").when(name).getName();
+        doReturn(String.class).when(name).getJavaType();
+        mockVersionAttribute(name);
+        Query query = mock(Query.class);
+        when(query.executeUpdate()).thenReturn(1);
+        doReturn(query).when(em).createQuery(any(CriteriaUpdate.class));
+        
+        assertTrue(instance.patch(1l, Collections.<String, Object>singletonMap("name", "My name"), null));
+        // a single UPDATE statement which increments the version
+        verify(query).executeUpdate();
+        verify(em.getCriteriaBuilder()).sum(any(Expression.class), eq(1));
+        verify(em, never()).merge(any(SimpleEntity.class));
+        verify(em, never()).find(eq(SimpleEntity.class), any(Long.class));
+    }
+    
+    @Test
+    public void testPatchNotFound() throws NoSuchFieldException {
+        Attribute name = mock(Attribute.class);
+        doReturn("name").when(name).getName();
+        doReturn(String.class).when(name).getJavaType();
+        mockVersionAttribute(name);
+        Query query = mock(Query.class);
+        when(query.executeUpdate()).thenReturn(0);
+        doReturn(query).when(em).createQuery(any(CriteriaUpdate.class));
+        ServiceCache<Long, SimpleEntity> cache = new ServiceCache<>(10, 0);
+        instance.setEntityCache(cache);
+        when(em.find(SimpleEntity.class, 1l)).thenReturn(createEntity(1l));
+        SimpleEntity cached = instance.findById(1l);
+        
+        assertFalse(instance.patch(1l, Collections.<String, Object>singletonMap("name", "My name"), null));
+        // nothing was written, thus nothing is invalidated
+        assertSame(cached, instance.findById(1l));
+        verify(em, times(1)).find(SimpleEntity.class, 1l);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testPatchVersionAttribute() throws NoSuchFieldException {
+        mockVersionAttribute();
+        instance.patch(1l, Collections.<String, Object>singletonMap("version", 5l), null);
+    }
+    
+    @Test
+    public void testGetNextVersion() {
+        assertEquals(6l, CrudService.getNextVersion(mockAttribute(long.class), 5l));
+        assertEquals(0l, CrudService.getNextVersion(mockAttribute(Long.class), null));
+        assertEquals(6, CrudService.getNextVersion(mockAttribute(int.class), 5));
+        assertEquals(0, CrudService.getNextVersion(mockAttribute(Integer.class), null));
+        assertEquals((short) 6, CrudService.getNextVersion(mockAttribute(short.class), (short) 5));
+        assertEquals((short) 0, CrudService.getNextVersion(mockAttribute(Short.class), null));
+        assertTrue(CrudService.getNextVersion(mockAttribute(Timestamp.class), new Timestamp(0)) instanceof Timestamp);
+    }
+    
+    @Test
+    public void testGetNextVersionUnsupported() {
+        for (Class<?> type : Arrays.<Class<?>>asList(BigInteger.class, Calendar.class, Date.class, String.class)) {
+            try {
+                CrudService.getNextVersion(mockAttribute(type), null);
+                fail(type.getName());
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+    
+    private static EntityMetadata.AttributeMetadata mockAttribute(Class<?> type) {
+        EntityMetadata.AttributeMetadata ret = mock(EntityMetadata.AttributeMetadata.class);
+        doReturn(type).when(ret).getJavaType();
+        doReturn("version").when(ret).getName();
+        return ret;
+    }
+    
+    private void mockVersionAttribute(Attribute... attributes) throws NoSuchFieldException {
+        instance.setValidator(mock(Validator.class));
+        SingularAttribute attribute = mock(SingularAttribute.class);
+        doReturn("version").when(attribute).getName();
+        doReturn(Long.class).when(attribute).getJavaType();
+        doReturn(true).when(attribute).isVersion();
+        doReturn(VersionedEntity.class.getDeclaredField("version")).when(attribute).getJavaMember();
+        EntityType<SimpleEntity> entityType = em.getMetamodel().entity(SimpleEntity.class);
+        Set<Attribute> allAttributes = new HashSet<>(Arrays.asList(attributes));
+        allAttributes.add(attribute);
+        doReturn(allAttributes).when(entityType).getAttributes();
+    }
+    
+    private static SimpleEntity createEntity(Long id) {
+        SimpleEntity ret = new SimpleEntity();
+        ret.setId(id);
+        return ret;
+    }
+}
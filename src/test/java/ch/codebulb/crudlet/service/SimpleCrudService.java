@@ -0,0 +1,129 @@
+package ch.codebulb.crudlet.service;
+
+import ch.codebulb.crudlet.SimpleEntity;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.validation.Validator;
+
+public class SimpleCrudService extends CrudService<SimpleEntity> {
+    private FlushStrategy flushStrategy = FlushStrategy.IMMEDIATE;
+    private boolean directDeleteEnabled = true;
+    private boolean queryPlanCacheEnabled = true;
+    private int maxNamedQueries = 500;
+    private boolean readOnlyQueryEnabled = false;
+    private long readYourWritesMillis = 1000;
+    private ServiceCache<Long, SimpleEntity> entityCache;
+    private ServiceCache<List<Object>, Object> queryCache;
+    private Validator validator;
+    private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+    
+    public SimpleCrudService(EntityManager em) {
+        setEm(em);
+    }
+    
+    @Override
+    public SimpleEntity create() {
+        return new SimpleEntity();
+    }
+
+    @Override
+    public Class<SimpleEntity> getModelClass() {
+        return SimpleEntity.class;
+    }
+
+    @Override
+    protected FlushStrategy getFlushStrategy() {
+        return flushStrategy;
+    }
+
+    void setFlushStrategy(FlushStrategy flushStrategy) {
+        this.flushStrategy = flushStrategy;
+    }
+
+    @Override
+    protected int getFlushInterval() {
+        return 2;
+    }
+
+    @Override
+    protected boolean isDirectDeleteEnabled() {
+        return directDeleteEnabled;
+    }
+
+    void setDirectDeleteEnabled(boolean directDeleteEnabled) {
+        this.directDeleteEnabled = directDeleteEnabled;
+    }
+
+    @Override
+    protected boolean isQueryPlanCacheEnabled() {
+        return queryPlanCacheEnabled;
+    }
+
+    void setQueryPlanCacheEnabled(boolean queryPlanCacheEnabled) {
+        this.queryPlanCacheEnabled = queryPlanCacheEnabled;
+    }
+
+    @Override
+    protected int getMaxNamedQueries() {
+        return maxNamedQueries;
+    }
+
+    void setMaxNamedQueries(int maxNamedQueries) {
+        this.maxNamedQueries = maxNamedQueries;
+    }
+
+    @Override
+    protected boolean isReadOnlyQueryEnabled() {
+        return readOnlyQueryEnabled;
+    }
+
+    void setReadOnlyQueryEnabled(boolean readOnlyQueryEnabled) {
+        this.readOnlyQueryEnabled = readOnlyQueryEnabled;
+    }
+
+    @Override
+    protected long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    void setReadYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    @Override
+    protected ServiceCache<Long, SimpleEntity> getEntityCache() {
+        return entityCache;
+    }
+
+    void setEntityCache(ServiceCache<Long, SimpleEntity> entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    @Override
+    protected ServiceCache<List<Object>, Object> getQueryCache() {
+        return queryCache;
+    }
+
+    void setQueryCache(ServiceCache<List<Object>, Object> queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    @Override
+    protected Validator getValidator() {
+        return validator != null ? validator : super.getValidator();
+    }
+
+    void setValidator(Validator validator) {
+        this.validator = validator;
+    }
+
+    @Override
+    protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        return transactionSynchronizationRegistry;
+    }
+
+    void setTransactionSynchronizationRegistry(TransactionSynchronizationRegistry transactionSynchronizationRegistry) {
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+    }
+}
@@ -0,0 +1,15 @@
+package ch.codebulb.crudlet.service;
+
+import ch.codebulb.crudlet.SimpleEntity;
+
+public class SimpleCrudServiceMocked extends CrudServiceMocked<SimpleEntity> {
+    @Override
+    public SimpleEntity create() {
+        return new SimpleEntity();
+    }
+
+    @Override
+    public Class<SimpleEntity> getModelClass() {
+        return SimpleEntity.class;
+    }
+}
@@ -0,0 +1,294 @@
+package ch.codebulb.crudlet.webservice;
+
+import ch.codebulb.crudlet.SimpleEntity;
+import ch.codebulb.crudlet.service.CrudService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import org.junit.After;
+import org.junit.Assume;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test for {@link AsyncCrudResource} class.<p/>
+ * 
+ * <b>Note:</b> This does explicitly <i>not</i> test {@link CrudService} functionality, but mocks it.
+ */
+public class AsyncCrudResourceTest {
+    private SimpleAsyncCrudResource instance;
+    private CrudService<SimpleEntity> service;
+    private ThreadPoolExecutor readExecutor;
+    private ThreadPoolExecutor writeExecutor;
+    private AsyncResponse response;
+    
+    private static final Long DUMMY_ENTITY_ID = 1l;
+    
+    @Before
+    public void init() {
+        service = mock(CrudService.class);
+        when(service.findById(DUMMY_ENTITY_ID)).thenReturn(new SimpleEntity());
+        
+        instance = new SimpleAsyncCrudResource(service);
+        readExecutor = AsyncCrudResource.createExecutor("test-read", 1, 1);
+        writeExecutor = AsyncCrudResource.createExecutor("test-write", 1, 1);
+        instance.readExecutor = readExecutor;
+        instance.writeExecutor = writeExecutor;
+        
+        instance.uri = mock(UriInfo.class);
+        when(instance.uri.getQueryParameters()).thenReturn(new MultivaluedHashMap<String, String>());
+        
+        response = mock(AsyncResponse.class);
+    }
+    
+    @After
+    public void shutdown() {
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+    
+    @Test
+    public void testFindById() {
+        instance.findById(DUMMY_ENTITY_ID, response);
+        assertEquals(200, captureResponse().getStatus());
+        verify(service).findById(DUMMY_ENTITY_ID);
+    }
+    
+    @Test
+    public void testDelete() {
+        instance.delete(DUMMY_ENTITY_ID, response);
+        assertEquals(204, captureResponse().getStatus());
+        verify(service).delete(DUMMY_ENTITY_ID);
+    }
+    
+    @Test
+    public void testWritesDoNotBlockReads() throws InterruptedException {
+        CountDownLatch release = block(writeExecutor);
+        try {
+            instance.findById(DUMMY_ENTITY_ID, response);
+            assertEquals(200, captureResponse().getStatus());
+        } finally {
+            release.countDown();
+        }
+    }
+    
+    @Test
+    public void testRejected() throws InterruptedException {
+        CountDownLatch release = block(readExecutor);
+        try {
+            // fills the queue
+            instance.findById(DUMMY_ENTITY_ID, mock(AsyncResponse.class));
+            
+            instance.findById(DUMMY_ENTITY_ID, response);
+            assertEquals(503, captureResponse().getStatus());
+        } finally {
+            release.countDown();
+        }
+    }
+    
+    @Test
+    public void testTimeout() throws InterruptedException {
+        instance.timeoutMillis = 100;
+        CountDownLatch release = block(readExecutor);
+        try {
+            instance.findById(DUMMY_ENTITY_ID, response);
+            verify(response).setTimeout(100, TimeUnit.MILLISECONDS);
+            ArgumentCaptor<TimeoutHandler> handler = ArgumentCaptor.forClass(TimeoutHandler.class);
+            verify(response).setTimeoutHandler(handler.capture());
+            
+            handler.getValue().handleTimeout(response);
+            assertEquals(503, captureResponse().getStatus());
+        } finally {
+            release.countDown();
+        }
+        // the queued operation is dropped
+        readExecutor.shutdown();
+        assertTrue(readExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(service, never()).findById(DUMMY_ENTITY_ID);
+    }
+    
+    @Test
+    public void testTimeoutRunning() throws InterruptedException {
+        instance.timeoutMillis = 100;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(service).delete(DUMMY_ENTITY_ID);
+
+        instance.delete(DUMMY_ENTITY_ID, response);
+        ArgumentCaptor<TimeoutHandler> handler = ArgumentCaptor.forClass(TimeoutHandler.class);
+        verify(response).setTimeoutHandler(handler.capture());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the running operation is awaited
+        handler.getValue().handleTimeout(response);
+        verify(response, times(2)).setTimeout(100, TimeUnit.MILLISECONDS);
+        verify(response, never()).resume(any(Response.class));
+
+        release.countDown();
+        assertEquals(204, captureResponse().getStatus());
+    }
+
+    @Test
+    public void testNoTimeout() {
+        instance.findById(DUMMY_ENTITY_ID, response);
+        captureResponse();
+        verify(response, never()).setTimeout(anyLong(), any(TimeUnit.class));
+    }
+    
+    @Test
+    public void testDetach() {
+        MultivaluedHashMap<String, String> queryParameters = new MultivaluedHashMap<>();
+        queryParameters.putSingle("name", "My name");
+        when(instance.uri.getQueryParameters()).thenReturn(queryParameters);
+        instance.headers = mock(HttpHeaders.class);
+        MultivaluedHashMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+        requestHeaders.putSingle(HttpHeaders.IF_NONE_MATCH, "\"1\"");
+        when(instance.headers.getRequestHeaders()).thenReturn(requestHeaders);
+        instance.request = mock(Request.class);
+        when(instance.request.getMethod()).thenReturn(HttpMethod.GET);
+        
+        CrudResource<SimpleEntity> resource = instance.detach();
+        // the originals are not accessed any more
+        queryParameters.clear();
+        requestHeaders.clear();
+        
+        assertEquals("My name", resource.uri.getQueryParameters().getFirst("name"));
+        assertEquals("\"1\"", resource.headers.getHeaderString("if-none-match"));
+        assertEquals(304, resource.request.evaluatePreconditions(new EntityTag("1")).build().getStatus());
+        assertNull(resource.request.evaluatePreconditions(new EntityTag("2")));
+    }
+    
+    @Test
+    public void testDetachedIfMatch() {
+        instance.headers = mock(HttpHeaders.class);
+        MultivaluedHashMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+        requestHeaders.putSingle(HttpHeaders.IF_MATCH, "\"1\", \"2\"");
+        when(instance.headers.getRequestHeaders()).thenReturn(requestHeaders);
+        instance.request = mock(Request.class);
+        when(instance.request.getMethod()).thenReturn(HttpMethod.PUT);
+        
+        CrudResource<SimpleEntity> resource = instance.detach();
+        assertNull(resource.request.evaluatePreconditions(new EntityTag("2")));
+        assertEquals(412, resource.request.evaluatePreconditions(new EntityTag("3")).build().getStatus());
+        // If-Match requires the strong comparison
+        assertEquals(412, resource.request.evaluatePreconditions(new EntityTag("2", true)).build().getStatus());
+        assertEquals(412, resource.request.evaluatePreconditions().build().getStatus());
+    }
+    
+    @Test
+    public void testVirtualThreadExecutorBounded() throws InterruptedException {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            VirtualThreadExecutor executor = new VirtualThreadExecutor(threads, 1, 1);
+            CountDownLatch release = new CountDownLatch(1);
+            try {
+                executor.execute(await(release));
+                // waits for the first task
+                executor.execute(await(release));
+                executor.execute(await(release));
+                fail();
+            } catch (RejectedExecutionException ex) {
+                // expected
+            } finally {
+                release.countDown();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testVirtualThreadsAvailable() {
+        String version = System.getProperty("java.specification.version");
+        boolean supported = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        assertEquals(supported, AsyncCrudResource.isVirtualThreadsAvailable());
+    }
+    
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        Assume.assumeTrue(AsyncCrudResource.isVirtualThreadsAvailable());
+        ExecutorService executor = AsyncCrudResource.createVirtualThreadExecutor("test-virtual", 1, 1);
+        try {
+            instance.readExecutor = executor;
+            instance.findById(DUMMY_ENTITY_ID, response);
+            assertEquals(200, captureResponse().getStatus());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+    
+    private Response captureResponse() {
+        ArgumentCaptor<Response> ret = ArgumentCaptor.forClass(Response.class);
+        verify(response, timeout(5000)).resume(ret.capture());
+        return ret.getValue();
+    }
+    
+    /**
+     * Occupies the single thread of the executor provided until the latch returned is released.
+     */
+    private static CountDownLatch block(ThreadPoolExecutor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        return release;
+    }
+}
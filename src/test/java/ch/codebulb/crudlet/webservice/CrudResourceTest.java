@@ -1,27 +1,70 @@
 package ch.codebulb.crudlet.webservice;
 
 import ch.codebulb.crudlet.SimpleEntity;
+import ch.codebulb.crudlet.VersionedEntity;
 import ch.codebulb.crudlet.config.Options;
+import ch.codebulb.crudlet.service.BatchOperation;
 import ch.codebulb.crudlet.service.CrudService;
+import ch.codebulb.crudlet.service.EntityMetadata;
+import ch.codebulb.crudlet.service.SortOrder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import org.junit.Before;
 import org.junit.Test;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * Test for {@link CrudResource} class.<p/>
@@ -34,6 +77,7 @@ public class CrudResourceTest {
     
     private static final Long DUMMY_ENTITY_ID = 1l;
     private SimpleEntity dummyEntity;
+    private MultivaluedHashMap<String, String> uriQueryParameters;
     
     public final ConstraintViolationException constraintViolationException = mock(ConstraintViolationException.class);
     
@@ -43,6 +87,12 @@ public class CrudResourceTest {
         Options.ALLOW_FILTERS = true;
         Options.ALLOW_COUNT = true;
         Options.ALLOW_DELETE_ALL = true;
+        Options.MAX_PAGE_SIZE = 0;
+        Options.RETURN_PAGING_HEADERS = true;
+        Options.IMPORT_BATCH_SIZE = 500;
+        Options.ALLOW_UNINDEXED_SORT = true;
+        Options.RETURN_ETAGS = true;
+        Options.MAX_CONTENT_ETAG_ENTITIES = 100;
         
         // Setup instance with mocked service
         service = mock(CrudService.class);
@@ -56,7 +106,14 @@ public class CrudResourceTest {
         
         // Setup other mocks
         instance.uri = mock(UriInfo.class);
-        when(instance.uri.getQueryParameters()).thenReturn(new MultivaluedHashMap<String, String>());
+        uriQueryParameters = new MultivaluedHashMap<>();
+        when(instance.uri.getQueryParameters()).thenReturn(uriQueryParameters);
+        when(instance.uri.getRequestUriBuilder()).thenAnswer(new Answer<UriBuilder>() {
+            @Override
+            public UriBuilder answer(InvocationOnMock invocation) {
+                return UriBuilder.fromUri("http://localhost/simple");
+            }
+        });
         
         Set<ConstraintViolation<?>> constraintViolations = new HashSet<>();
         when(constraintViolationException.getConstraintViolations()).thenReturn(constraintViolations);
@@ -87,6 +144,322 @@ public class CrudResourceTest {
         verify(service).findAll();
     }
     
+    @Test
+    public void testFindAllWithValidatedParameters() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        
+        instance.addQueryParameter("id", "<5");
+        Response response = instance.findAll();
+        verify(service).findBy(instance.getQueryParameters());
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllWithUnknownParameter() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        
+        instance.addQueryParameter("name", "My name");
+        Response response = instance.findAll();
+        verify(service, never()).findBy(any(Map.class));
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllWithIllegalParameterValue() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        
+        instance.addQueryParameter("id", ">abc");
+        Response response = instance.findAll();
+        verify(service, never()).findBy(any(Map.class));
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllWithIllegalBetweenParameter() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        
+        instance.addQueryParameter("id", "[1]");
+        Response response = instance.findAll();
+        verify(service, never()).findBy(any(Map.class));
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testDeleteAllWithUnknownParameter() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        
+        instance.addQueryParameter("name", "My name");
+        Response response = instance.deleteAll();
+        verify(service, never()).deleteBy(any(Map.class));
+        verify(service, never()).deleteAll();
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllNested() {
+        instance = new SimpleCrudResource(service) {
+            @Override
+            protected Map<String, String> getFilters(Map<String, String> queryParameters) {
+                Map<String, String> ret = queryParameters != null ? new HashMap<>(queryParameters) : new HashMap<String, String>();
+                ret.put("parentId", "1");
+                return ret;
+            }
+        };
+        instance.uri = mock(UriInfo.class);
+        when(instance.uri.getQueryParameters()).thenReturn(uriQueryParameters);
+        when(instance.uri.getRequestUriBuilder()).thenReturn(UriBuilder.fromUri("http://localhost/simple"));
+        Map<String, String> filters = Collections.singletonMap("parentId", "1");
+
+        uriQueryParameters.putSingle(CrudResource.OFFSET_PARAMETER, "10");
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "10");
+        when(service.findBy(filters, 10, 10)).thenReturn(Arrays.asList(new SimpleEntity()));
+        instance.findAll();
+        verify(service).findBy(filters, 10, 10);
+        verify(service).countBy(filters);
+        verify(service, never()).countAll();
+
+        uriQueryParameters.putSingle(CrudResource.SORT_PARAMETER, "name");
+        instance.findAll();
+        verify(service).findBy(eq(filters), any(List.class), eq(10), eq(10));
+
+        uriQueryParameters.clear();
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "5");
+        instance.findAll();
+        verify(service).findAfter(filters, 5l, -1);
+
+        instance.findAllStreamed();
+        verify(service).iterateBy(filters, 5l, Options.STREAM_CHUNK_SIZE);
+
+        instance.deleteAll();
+        verify(service).deleteBy(filters);
+        verify(service, never()).deleteAll();
+    }
+
+    @Test
+    public void testFindAllPaged() {
+        uriQueryParameters.putSingle(CrudResource.OFFSET_PARAMETER, "20");
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "10");
+        when(service.findBy(null, 20, 10)).thenReturn(Arrays.asList(new SimpleEntity(), new SimpleEntity()));
+        when(service.countAll()).thenReturn(100l);
+        
+        Response response = instance.findAll();
+        verify(service).findBy(null, 20, 10);
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertEquals(2, ((List) response.getEntity()).size());
+        assertEquals(100l, response.getHeaders().getFirst("X-Total-Count"));
+        assertEquals("http://localhost/simple?_limit=10&_offset=30", response.getLink("next").getUri().toString());
+        assertEquals("http://localhost/simple?_limit=10&_offset=10", response.getLink("prev").getUri().toString());
+        assertEquals("http://localhost/simple?_limit=10&_offset=90", response.getLink("last").getUri().toString());
+    }
+    
+    @Test
+    public void testFindAllPagedWithParameters() {
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "10");
+        instance.addQueryParameter("name", "My name");
+        
+        Response response = instance.findAll();
+        verify(service).findBy(instance.getQueryParameters(), 0, 10);
+        verify(service, never()).countBy(any(Map.class));
+        assertEquals(0l, response.getHeaders().getFirst("X-Total-Count"));
+    }
+    
+    @Test
+    public void testFindAllPagedHeadersDisabled() {
+        Options.RETURN_PAGING_HEADERS = false;
+        uriQueryParameters.putSingle(CrudResource.OFFSET_PARAMETER, "20");
+        
+        Response response = instance.findAll();
+        verify(service).findBy(null, 20, -1);
+        verify(service, never()).countAll();
+        assertNull(response.getHeaders().getFirst("X-Total-Count"));
+    }
+    
+    @Test
+    public void testFindAllPagedIllegal() {
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "-1");
+        
+        Response response = instance.findAll();
+        verify(service, never()).findAll();
+        verify(service, never()).findBy(any(Map.class), anyInt(), anyInt());
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllAfter() {
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "5");
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "2");
+        SimpleEntity last = new SimpleEntity();
+        last.setId(7l);
+        when(service.findAfter(null, 5l, 2)).thenReturn(Arrays.asList(new SimpleEntity(), last));
+        
+        Response response = instance.findAll();
+        verify(service).findAfter(null, 5l, 2);
+        verify(service, never()).countAll();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertEquals(7l, response.getHeaders().getFirst(CrudResource.NEXT_CURSOR_HEADER));
+        assertEquals("http://localhost/simple?_limit=2&_after=7", response.getLink("next").getUri().toString());
+    }
+    
+    @Test
+    public void testFindAllAfterLastPage() {
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "5");
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "2");
+        when(service.findAfter(null, 5l, 2)).thenReturn(Arrays.asList(new SimpleEntity()));
+        
+        Response response = instance.findAll();
+        assertNull(response.getHeaders().getFirst(CrudResource.NEXT_CURSOR_HEADER));
+        assertNull(response.getLink("next"));
+    }
+    
+    @Test
+    public void testFindAllAfterWithOffsetIllegal() {
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "5");
+        uriQueryParameters.putSingle(CrudResource.OFFSET_PARAMETER, "5");
+        
+        Response response = instance.findAll();
+        verify(service, never()).findAfter(any(Map.class), any(Long.class), anyInt());
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllSorted() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        uriQueryParameters.putSingle(CrudResource.SORT_PARAMETER, "-id");
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "10");
+        when(service.findBy(isNull(Map.class), any(List.class), eq(0), eq(10))).thenAnswer(new Answer<List<SimpleEntity>>() {
+            @Override
+            public List<SimpleEntity> answer(InvocationOnMock invocation) {
+                List<SortOrder> orders = (List<SortOrder>) invocation.getArguments()[1];
+                assertEquals(1, orders.size());
+                assertEquals("id", orders.get(0).getAttribute());
+                assertFalse(orders.get(0).isAscending());
+                return Arrays.asList(new SimpleEntity());
+            }
+        });
+        
+        Response response = instance.findAll();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertEquals(1, ((List) response.getEntity()).size());
+    }
+    
+    @Test
+    public void testFindAllSortedUnknownAttribute() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        uriQueryParameters.putSingle(CrudResource.SORT_PARAMETER, "id,-name");
+        
+        Response response = instance.findAll();
+        verify(service, never()).findBy(any(Map.class), any(List.class), anyInt(), anyInt());
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllSortedAfterIllegal() {
+        uriQueryParameters.putSingle(CrudResource.SORT_PARAMETER, "id");
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "5");
+        
+        Response response = instance.findAll();
+        verify(service, never()).findAfter(any(Map.class), any(Long.class), anyInt());
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllFields() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        uriQueryParameters.putSingle(CrudResource.FIELDS_PARAMETER, "id");
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("id", 1l);
+        when(service.findFieldsBy(null, null, Arrays.asList("id"), 0, -1)).thenReturn(Arrays.asList(fields));
+        
+        Response response = instance.findAll();
+        verify(service, never()).findAll();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        JsonArray entities = (JsonArray) response.getEntity();
+        assertEquals(1, entities.size());
+        assertEquals(1, entities.getJsonObject(0).getInt("id"));
+    }
+    
+    @Test
+    public void testFindAllFieldsUnknownAttribute() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(SimpleEntity.class, null));
+        uriQueryParameters.putSingle(CrudResource.FIELDS_PARAMETER, "id,name");
+        
+        Response response = instance.findAll();
+        verify(service, never()).findFieldsBy(any(Map.class), any(List.class), any(List.class), anyInt(), anyInt());
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindByIdFields() {
+        uriQueryParameters.putSingle(CrudResource.FIELDS_PARAMETER, "name");
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("id", DUMMY_ENTITY_ID);
+        fields.put("name", "My name");
+        when(service.findFieldsById(DUMMY_ENTITY_ID, Arrays.asList("name"))).thenReturn(fields);
+        
+        Response response = instance.findById(DUMMY_ENTITY_ID);
+        verify(service, never()).findById(any(Long.class));
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertEquals("My name", ((JsonObject) response.getEntity()).getString("name"));
+    }
+    
+    @Test
+    public void testFindByIdFieldsNotFound() {
+        uriQueryParameters.putSingle(CrudResource.FIELDS_PARAMETER, "name");
+        when(service.findFieldsById(DUMMY_ENTITY_ID, Arrays.asList("name"))).thenReturn(null);
+        
+        Response response = instance.findById(DUMMY_ENTITY_ID);
+        assertEquals(Response.Status.NOT_FOUND, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testFindAllMaxPageSize() {
+        Options.MAX_PAGE_SIZE = 5;
+        uriQueryParameters.putSingle(CrudResource.LIMIT_PARAMETER, "10");
+        
+        instance.findAll();
+        verify(service).findBy(null, 0, 5);
+    }
+    
+    @Test
+    public void testFindAllStreamed() throws IOException {
+        SimpleEntity first = new SimpleEntity();
+        first.setId(1l);
+        SimpleEntity second = new SimpleEntity();
+        second.setId(2l);
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        when(service.iterateBy(null, null, Options.STREAM_CHUNK_SIZE)).thenReturn(Arrays.asList(first, second).iterator());
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        
+        Response response = instance.findAllStreamed();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        assertEquals("[{\"id\":1},{\"id\":2}]", output.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testExport() throws IOException {
+        SimpleEntity first = new SimpleEntity();
+        first.setId(3l);
+        SimpleEntity second = new SimpleEntity();
+        second.setId(4l);
+        uriQueryParameters.putSingle(CrudResource.AFTER_PARAMETER, "2");
+        instance.addQueryParameter("name", "My name");
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        when(service.iterateBy(instance.getQueryParameters(), 2l, Options.STREAM_CHUNK_SIZE)).thenReturn(Arrays.asList(first, second).iterator());
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        
+        Response response = instance.export();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        assertEquals("{\"id\":3}\n{\"id\":4}\n", output.toString("UTF-8"));
+    }
+    
     @Test
     public void testFindById() {
         Response response = instance.findById(DUMMY_ENTITY_ID);
@@ -95,6 +468,86 @@ public class CrudResourceTest {
         assertNotNull(response.getEntity());
     }
     
+    @Test
+    public void testFindByIdETag() throws IOException {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        mockRequest(null);
+        
+        Response response = instance.findById(DUMMY_ENTITY_ID);
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertNotNull(response.getEntityTag());
+        assertFalse(response.getEntityTag().isWeak());
+        // serialized only once
+        assertEquals("{\"id\":null}", new String((byte[]) response.getEntity(), "UTF-8"));
+        
+        mockRequest(response.getEntityTag().getValue());
+        response = instance.findById(DUMMY_ENTITY_ID);
+        assertEquals(Response.Status.NOT_MODIFIED, response.getStatusInfo());
+        assertNull(response.getEntity());
+        assertNotNull(response.getEntityTag());
+    }
+    
+    @Test
+    public void testFindByIdETagVersion() {
+        VersionedEntity entity = new VersionedEntity();
+        entity.setId(DUMMY_ENTITY_ID);
+        entity.setVersion(1l);
+        when(service.findById(DUMMY_ENTITY_ID)).thenReturn(entity);
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        instance.cacheControl = new CacheControl();
+        mockRequest(null);
+        
+        Response response = instance.findById(DUMMY_ENTITY_ID);
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        // not serialized
+        assertEquals(entity, response.getEntity());
+        assertNotNull(response.getHeaderString(HttpHeaders.CACHE_CONTROL));
+        EntityTag tag = response.getEntityTag();
+        
+        entity.setVersion(2l);
+        response = instance.findById(DUMMY_ENTITY_ID);
+        assertFalse(tag.equals(response.getEntityTag()));
+    }
+    
+    @Test
+    public void testFindAllETag() {
+        when(service.findAll()).thenReturn(Arrays.asList(dummyEntity));
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        mockRequest(null);
+        
+        Response response = instance.findAll();
+        assertNotNull(response.getEntityTag());
+        
+        mockRequest(response.getEntityTag().getValue());
+        assertEquals(Response.Status.NOT_MODIFIED, instance.findAll().getStatusInfo());
+        
+        Options.RETURN_ETAGS = false;
+        assertNull(instance.findAll().getEntityTag());
+    }
+    
+    @Test
+    public void testFindAllETagTooLarge() {
+        Options.MAX_CONTENT_ETAG_ENTITIES = 1;
+        when(service.findAll()).thenReturn(Arrays.asList(dummyEntity, dummyEntity));
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        mockRequest(null);
+        
+        Response response = instance.findAll();
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertNull(response.getEntityTag());
+        // the response is not serialized in advance
+        verify(instance.providers, never()).getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class));
+    }
+    
     @Test
     public void testFindByIdNotFound() {
         Response response = instance.findById(0l);
@@ -168,6 +621,120 @@ public class CrudResourceTest {
         assertNull(response.getHeaders().get("Location"));
     }
     
+    @Test
+    public void testImportAll() throws IOException {
+        Options.IMPORT_BATCH_SIZE = 2;
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        String body = "{}\n{\"id\":5}\nbroken\n\n{}\n{}\n";
+        
+        Response response = instance.importAll(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        verify(service, times(2)).saveAll(any(List.class));
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        JsonObject entity = (JsonObject) response.getEntity();
+        assertEquals(3, entity.getJsonNumber("imported").longValue());
+        assertEquals(2, entity.getJsonObject("errors").size());
+        assertNotNull(entity.getJsonObject("errors").getJsonObject("2"));
+        assertNotNull(entity.getJsonObject("errors").getJsonObject("3"));
+    }
+
+    @Test
+    public void testImportAllBatchFailed() throws IOException, NoSuchMethodException {
+        Options.IMPORT_BATCH_SIZE = 2;
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        when(service.saveAll(any(List.class))).thenReturn(null).thenThrow(new IllegalStateException("Batch failed")).thenReturn(null);
+        String body = "{}\n{}\n{}\n{}\n{}\n";
+
+        Response response = instance.importAll(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        verify(service, times(3)).saveAll(any(List.class));
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        JsonObject entity = (JsonObject) response.getEntity();
+        assertEquals(3, entity.getJsonNumber("imported").longValue());
+        assertEquals(2, entity.getJsonObject("errors").size());
+        assertNotNull(entity.getJsonObject("errors").getJsonObject("3"));
+        assertNotNull(entity.getJsonObject("errors").getJsonObject("4"));
+        // every batch must be committed in its own transaction rather than within the request's transaction
+        assertEquals(TransactionAttributeType.NOT_SUPPORTED, CrudResource.class.getMethod("importAll", InputStream.class)
+                .getAnnotation(TransactionAttribute.class).value());
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        SimpleEntity created = new SimpleEntity();
+        created.setId(10l);
+        SimpleEntity updated = new SimpleEntity();
+        updated.setId(2l);
+        when(service.executeBatch(any(List.class))).thenReturn(Arrays.asList(created, updated, null));
+        String body = "[{\"op\":\"create\",\"entity\":{}},{\"op\":\"update\",\"id\":2,\"entity\":{}},{\"op\":\"delete\",\"id\":3}]";
+        
+        Response response = instance.batch(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        verify(service).executeBatch(any(List.class));
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        JsonArray results = (JsonArray) response.getEntity();
+        assertEquals(201, results.getJsonObject(0).getInt("status"));
+        assertEquals(10, results.getJsonObject(0).getJsonNumber("id").longValue());
+        assertEquals("/10", results.getJsonObject(0).getString("location"));
+        assertEquals(200, results.getJsonObject(1).getInt("status"));
+        assertEquals(204, results.getJsonObject(2).getInt("status"));
+    }
+    
+    @Test
+    public void testBatchIllegal() throws IOException {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        String body = "[{\"op\":\"create\",\"entity\":{}},{\"op\":\"update\",\"id\":2,\"entity\":{\"id\":3}},{\"op\":\"delete\"}]";
+        
+        Response response = instance.batch(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        verify(service, never()).executeBatch(any(List.class));
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+        JsonArray results = (JsonArray) response.getEntity();
+        assertEquals(424, results.getJsonObject(0).getInt("status"));
+        assertEquals(400, results.getJsonObject(1).getInt("status"));
+        assertEquals(400, results.getJsonObject(2).getInt("status"));
+    }
+    
+    @Test
+    public void testBatchFailed() throws IOException {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        when(service.executeBatch(any(List.class))).thenThrow(new BatchOperation.FailedException(1, new OptimisticLockException()));
+        String body = "[{\"op\":\"delete\",\"id\":3},{\"op\":\"update\",\"id\":2,\"entity\":{}}]";
+        
+        Response response = instance.batch(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(Response.Status.CONFLICT, response.getStatusInfo());
+        JsonArray results = (JsonArray) response.getEntity();
+        assertEquals(424, results.getJsonObject(0).getInt("status"));
+        assertEquals(409, results.getJsonObject(1).getInt("status"));
+        assertNotNull(results.getJsonObject(1).getJsonObject("error"));
+    }
+    
+    @Test
+    public void testBatchFailedOnFlush() throws IOException {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyReader(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdReader());
+        when(service.executeBatch(any(List.class))).thenThrow(new BatchOperation.FailedException(-1, new PersistenceException("Flush failed")));
+        String body = "[{\"op\":\"delete\",\"id\":3}]";
+        
+        Response response = instance.batch(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+        assertNotNull(((JsonObject) response.getEntity()).getJsonObject("error"));
+    }
+    
     @Test
     public void testUpdate() {
         dummyEntity.setId(1l);
@@ -188,6 +755,95 @@ public class CrudResourceTest {
         assertNotNull(response.getHeaders().getFirst("Location")); // TODO Test correct Location header response
     }
     
+    @Test
+    public void testUpdateIfMatchVersion() {
+        VersionedEntity entity = new VersionedEntity();
+        entity.setId(1l);
+        VersionedEntity updated = new VersionedEntity();
+        updated.setId(1l);
+        updated.setVersion(4l);
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        when(service.saveIfVersion(entity, 3l)).thenReturn(updated);
+        mockIfMatch("\"3\"");
+        
+        Response response = instance.update(1l, entity);
+        assertEquals(Response.Status.OK, response.getStatusInfo());
+        assertEquals("4", response.getEntityTag().getValue());
+        // no read-before-write
+        verify(service, never()).findById(any(Long.class));
+        verify(service, never()).save(any(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testUpdateIfMatchVersionConflict() {
+        VersionedEntity entity = new VersionedEntity();
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        when(service.saveIfVersion(entity, 3l)).thenThrow(new OptimisticLockException());
+        mockIfMatch("\"3\"");
+        
+        assertEquals(Response.Status.PRECONDITION_FAILED, instance.update(1l, entity).getStatusInfo());
+        
+        // illegal version
+        mockIfMatch("\"three\"");
+        assertEquals(Response.Status.PRECONDITION_FAILED, instance.update(1l, entity).getStatusInfo());
+    }
+    
+    @Test
+    public void testUpdateIfMatchContent() {
+        when(service.getModelClass()).thenReturn(SimpleEntity.class);
+        instance.providers = mock(Providers.class);
+        when(instance.providers.getMessageBodyWriter(any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class)))
+                .thenReturn(new IdWriter());
+        mockIfMatch("\"outdated\"");
+        when(instance.request.evaluatePreconditions(any(EntityTag.class))).thenReturn(Response.status(Response.Status.PRECONDITION_FAILED));
+        
+        Response response = instance.update(1l, dummyEntity);
+        assertEquals(Response.Status.PRECONDITION_FAILED, response.getStatusInfo());
+        verify(service).findById(1l);
+        verify(service, never()).save(any(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testPatch() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        when(service.patch(1l, Collections.<String, Object>singletonMap("name", "My name"), null)).thenReturn(true);
+        
+        Response response = instance.patch(1l, toStream("{\"name\":\"My name\"}"));
+        assertEquals(Response.Status.NO_CONTENT, response.getStatusInfo());
+        verify(service, never()).findById(any(Long.class));
+        verify(service, never()).save(any(SimpleEntity.class));
+    }
+    
+    @Test
+    public void testPatchNotFound() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        when(service.patch(1l, Collections.<String, Object>singletonMap("name", null), null)).thenReturn(false);
+        
+        assertEquals(Response.Status.NOT_FOUND, instance.patch(1l, toStream("{\"name\":null}")).getStatusInfo());
+    }
+    
+    @Test
+    public void testPatchIllegal() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        
+        assertEquals(Response.Status.BAD_REQUEST, instance.patch(1l, toStream("{\"id\":2}")).getStatusInfo());
+        assertEquals(Response.Status.BAD_REQUEST, instance.patch(1l, toStream("{\"version\":2}")).getStatusInfo());
+        assertEquals(Response.Status.BAD_REQUEST, instance.patch(1l, toStream("{\"unknown\":2}")).getStatusInfo());
+        assertEquals(Response.Status.BAD_REQUEST, instance.patch(1l, toStream("{\"name\":{}}")).getStatusInfo());
+        assertEquals(Response.Status.BAD_REQUEST, instance.patch(1l, toStream("[]")).getStatusInfo());
+        verify(service, never()).patch(any(Long.class), any(Map.class), any());
+    }
+    
+    @Test
+    public void testPatchIfMatchVersion() {
+        when(service.getMetadata()).thenReturn(EntityMetadata.of(VersionedEntity.class, null));
+        when(service.patch(1l, Collections.<String, Object>singletonMap("name", "My name"), 3l)).thenReturn(false);
+        mockIfMatch("\"3\"");
+        
+        assertEquals(Response.Status.PRECONDITION_FAILED, instance.patch(1l, toStream("{\"name\":\"My name\"}")).getStatusInfo());
+        verify(service).patch(1l, Collections.<String, Object>singletonMap("name", "My name"), 3l);
+    }
+    
     @Test
     public void testUpdateIllegal() {
         dummyEntity.setId(2l);
@@ -226,6 +882,60 @@ public class CrudResourceTest {
         assertNull(response.getEntity());
     }
     
+    @Test
+    public void testDeleteAllByIds() {
+        uriQueryParameters.putSingle(CrudResource.IDS_PARAMETER, "1,2, 3");
+        
+        Response response = instance.deleteAll();
+        verify(service).deleteByIds(Arrays.asList(1l, 2l, 3l));
+        verify(service, never()).deleteAll();
+        assertEquals(Response.Status.NO_CONTENT, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testDeleteAllByIdsDisabled() {
+        Options.ALLOW_DELETE_ALL = false;
+        uriQueryParameters.putSingle(CrudResource.IDS_PARAMETER, "1,2");
+        
+        Response response = instance.deleteAll();
+        verify(service, never()).deleteByIds(any(Collection.class));
+        assertEquals(Response.Status.FORBIDDEN, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testDeleteAllByIdsNested() {
+        instance = new SimpleCrudResource(service) {
+            @Override
+            protected Map<String, String> getFilters(Map<String, String> queryParameters) {
+                Map<String, String> ret = queryParameters != null ? new HashMap<>(queryParameters) : new HashMap<String, String>();
+                ret.put("parentId", "1");
+                return ret;
+            }
+        };
+        instance.uri = mock(UriInfo.class);
+        when(instance.uri.getQueryParameters()).thenReturn(uriQueryParameters);
+        uriQueryParameters.putSingle(CrudResource.IDS_PARAMETER, "1,2");
+        
+        Response response = instance.deleteAll();
+        Map<String, String> filters = new HashMap<>();
+        filters.put("parentId", "1");
+        filters.put("id", "(1,2)");
+        // only the children of the parent are deleted
+        verify(service).deleteBy(filters);
+        verify(service, never()).deleteByIds(any(Collection.class));
+        assertEquals(Response.Status.NO_CONTENT, response.getStatusInfo());
+    }
+    
+    @Test
+    public void testDeleteAllByIdsIllegal() {
+        uriQueryParameters.putSingle(CrudResource.IDS_PARAMETER, "1,x");
+        
+        Response response = instance.deleteAll();
+        verify(service, never()).deleteByIds(any(Collection.class));
+        verify(service, never()).deleteAll();
+        assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+    }
+    
     @Test
     public void testDeleteAllWithParametersDisabled() {
         Options.ALLOW_FILTERS = false;
@@ -234,4 +944,67 @@ public class CrudResourceTest {
         instance.deleteAll();
         verify(service).deleteAll();
     }
+    
+    private static InputStream toStream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void mockIfMatch(String ifMatch) {
+        instance.request = mock(Request.class);
+        instance.headers = mock(HttpHeaders.class);
+        when(instance.headers.getHeaderString(HttpHeaders.IF_MATCH)).thenReturn(ifMatch);
+    }
+    
+    private void mockRequest(final String ifNoneMatch) {
+        instance.request = mock(Request.class);
+        when(instance.request.evaluatePreconditions(any(EntityTag.class))).thenAnswer(new Answer<Response.ResponseBuilder>() {
+            @Override
+            public Response.ResponseBuilder answer(InvocationOnMock invocation) {
+                EntityTag tag = (EntityTag) invocation.getArguments()[0];
+                return tag.getValue().equals(ifNoneMatch) ? Response.notModified() : null;
+            }
+        });
+    }
+    
+    private static class IdWriter implements MessageBodyWriter<SimpleEntity> {
+        @Override
+        public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return true;
+        }
+
+        @Override
+        public long getSize(SimpleEntity t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(SimpleEntity t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+            entityStream.write(("{\"id\":" + t.getId() + "}").getBytes("UTF-8"));
+            entityStream.close();
+        }
+    }
+    
+    private static class IdReader implements MessageBodyReader<SimpleEntity> {
+        @Override
+        public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return true;
+        }
+
+        @Override
+        public SimpleEntity readFrom(Class<SimpleEntity> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+            JsonObject json;
+            try {
+                json = Json.createReader(entityStream).readObject();
+            } catch (JsonException ex) {
+                throw new IOException(ex);
+            }
+            SimpleEntity ret = new SimpleEntity();
+            if (json.containsKey("id")) {
+                ret.setId(json.getJsonNumber("id").longValue());
+            }
+            return ret;
+        }
+    }
 }
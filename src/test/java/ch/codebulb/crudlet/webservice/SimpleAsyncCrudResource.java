@@ -0,0 +1,42 @@
+package ch.codebulb.crudlet.webservice;
+
+import ch.codebulb.crudlet.SimpleEntity;
+import ch.codebulb.crudlet.service.CrudService;
+import java.util.concurrent.ExecutorService;
+
+public class SimpleAsyncCrudResource extends AsyncCrudResource<SimpleEntity> {
+    private CrudService<SimpleEntity> service;
+    
+    ExecutorService readExecutor;
+    ExecutorService writeExecutor;
+    long timeoutMillis;
+
+    public SimpleAsyncCrudResource(CrudService<SimpleEntity> service) {
+        this.service = service;
+    }
+    
+    @Override
+    protected CrudService<SimpleEntity> getService() {
+        return service;
+    }
+
+    @Override
+    protected CrudResource<SimpleEntity> createResource() {
+        return new SimpleCrudResource(service);
+    }
+
+    @Override
+    protected ExecutorService getReadExecutor() {
+        return readExecutor;
+    }
+
+    @Override
+    protected ExecutorService getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    @Override
+    protected long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -4,11 +4,13 @@ import ch.codebulb.crudlet.SimpleEntity;
 import ch.codebulb.crudlet.service.CrudService;
 import java.util.HashMap;
 import java.util.Map;
+import javax.ws.rs.core.CacheControl;
 
 public class SimpleCrudResource extends CrudResource<SimpleEntity> {
     private CrudService<SimpleEntity> service;
     
     private Map<String, String> queryParameters = new HashMap<>();
+    CacheControl cacheControl;
 
     public SimpleCrudResource(CrudService<SimpleEntity> service) {
         this.service = service;
@@ -18,6 +20,11 @@ public class SimpleCrudResource extends CrudResource<SimpleEntity> {
         return service;
     }
 
+    @Override
+    protected CacheControl getCacheControl() {
+        return cacheControl;
+    }
+
     @Override
     // Simply mock queryParameters getter
     Map<String, String> getQueryParameters() {